@@ -0,0 +1,163 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/** This class runs benchmarks and reports their throughput and allocation rate, in the manner of
+ * JMH (which is not available to this project's plain javac build). Each benchmark is run for a
+ * few warmup iterations, so that the JIT compiler has compiled its hot path, and then for a few
+ * measured iterations of about one second each. Allocation is measured with the per-thread
+ * allocation counter of the JVM, and the number of garbage collections during the measured
+ * iterations is reported along with it.
+ *
+ * As with JMH, each benchmark is run in a JVM of its own, started with the same options as this
+ * one, so that the code compiled, the objects allocated and the caches filled by one benchmark
+ * can't affect the next. The state a benchmark needs is set up in that JVM only, on the thread
+ * that then runs the benchmark.
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** A benchmark body, which performs an operation a given number of times. The result of every
+     * operation should be folded into the value returned, so that the JIT compiler can't
+     * eliminate the operations as dead code.
+     */
+    public interface Benchmark {
+        long run(int operations);
+
+        /** Releases what the setup of the benchmark acquired (e.g., threads), once it has been measured. */
+        default void tearDown() {
+        }
+    }
+
+    /** Sets up the state of a benchmark, in the JVM that runs it, and returns its body. */
+    public interface Setup {
+        Benchmark setUp() throws IOException;
+    }
+
+    public static final String FORK_OPTION = "-fork";
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final String filter;
+    private final String forkedName;
+    private final Class<?> mainClass;
+    private final String[] args;
+
+    // results of every operation end up here
+    private static volatile long sink;
+
+    /**
+     * CONSTRUCTOR: BenchmarkRunner Object
+     * @param mainClass class whose main method runs the benchmarks, started again in a new JVM for each benchmark
+     * @param args arguments of the main method, passed on to the new JVMs along with FORK_OPTION
+     * @param filter only benchmarks whose name contains this text are run, null to run them all
+     * @param forkedName name of the only benchmark to run, in this JVM, or null to run each benchmark in a new JVM
+     */
+    public BenchmarkRunner(Class<?> mainClass, String[] args, String filter, String forkedName) {
+        this.mainClass = mainClass;
+        this.args = args.clone();
+        this.filter = filter;
+        this.forkedName = forkedName;
+        if (forkedName == null)
+            System.out.format("%-50s %14s %12s %12s %10s %6s\n", "Benchmark", "Score", "Error", "Units", "Alloc B/op", "GCs");
+    }
+
+    /**
+     * runs a benchmark in a new JVM, or in this one if it is the JVM started for the benchmark, and prints its
+     * throughput, in operations per second, and its allocation per operation
+     * @param name name of the benchmark, as reported
+     * @param setup setup of the benchmark, which returns its body
+     */
+    public void run(String name, Setup setup) throws IOException, InterruptedException {
+        if (forkedName == null) {
+            if (filter == null || name.contains(filter))
+                fork(name);
+        } else if (forkedName.equals(name)) {
+            Benchmark benchmark = setup.setUp();
+            try {
+                measure(name, benchmark);
+            } finally {
+                benchmark.tearDown();
+            }
+        }
+    }
+
+    /**
+     * starts a JVM with the options of this one, which runs the benchmark and prints its result to the same output
+     */
+    private void fork(String name) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.addAll(Arrays.asList(args));
+        command.add(FORK_OPTION);
+        command.add(name);
+
+        int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (status != 0)
+            System.out.format("%-50s failed with exit status %d\n", name, status);
+    }
+
+    private void measure(String name, Benchmark benchmark) {
+
+        // find how many operations take about one iteration, starting from a single one
+        int operations = 1;
+        while (true) {
+            long start = System.nanoTime();
+            sink += benchmark.run(operations);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= ITERATION_NANOS / 10 || operations >= Integer.MAX_VALUE / 2) {
+                operations = (int) Math.max(1, Math.min(Integer.MAX_VALUE, operations * ITERATION_NANOS / Math.max(1, elapsed)));
+                break;
+            }
+            operations *= 2;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            sink += benchmark.run(operations);
+
+        double[] scores = new double[MEASURED_ITERATIONS];
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long collectionsBefore = countCollections();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += benchmark.run(operations);
+            scores[i] = operations * 1e9 / (System.nanoTime() - start);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long collections = countCollections() - collectionsBefore;
+
+        double mean = 0;
+        for (double score : scores)
+            mean += score / scores.length;
+        double variance = 0;
+        for (double score : scores)
+            variance += (score - mean) * (score - mean) / (scores.length - 1);
+
+        System.out.format(Locale.ROOT, "%-50s %14.1f %12.1f %12s %10.1f %6d\n", name, mean, Math.sqrt(variance),
+                "ops/s", (double) allocated / ((long) operations * MEASURED_ITERATIONS), collections);
+    }
+
+    private long countCollections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : collectors)
+            count += Math.max(0, collector.getCollectionCount());
+        return count;
+    }
+}
@@ -0,0 +1,201 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Benchmarks of the hot paths of the resolver: parsing responses, writing queries, looking up
+ * record types, and reading and updating the cache at sizes from a thousand to millions of
+ * nodes. Run with "make bench", optionally with BENCH_ARGS set to:
+ *
+ *   [filter] [-n maxCacheSize]
+ *
+ * where only benchmarks whose name contains filter are run, and the cache benchmarks go up to
+ * maxCacheSize nodes (default 1000000, each size being ten times the previous one starting from
+ * 1000). Large caches need a larger heap, e.g., JAVA_OPTS=-Xmx8g for ten million nodes.
+ *
+ * Each benchmark runs in a JVM of its own (see BenchmarkRunner), and the cache benchmarks each
+ * fill a cache of their own rather than the one of the resolver.
+ */
+public class Benchmarks {
+
+    private static final long DEFAULT_MAX_CACHE_SIZE = 1000000;
+    private static final int QUERY_NAMES = 1024;
+    private static final int MISSING_NODES = 1024;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String filter = null;
+        String forkedName = null;
+        long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+        List<String> options = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                maxCacheSize = Long.parseLong(args[++i]);
+                options.add("-n");
+                options.add(args[i]);
+            } else if (args[i].equals(BenchmarkRunner.FORK_OPTION) && i + 1 < args.length) {
+                forkedName = args[++i];
+            } else {
+                filter = args[i];
+            }
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(Benchmarks.class, options.toArray(new String[0]), filter, forkedName);
+        responseBenchmarks(runner, "rootReferral", Packets.rootReferral());
+        responseBenchmarks(runner, "cnameChain", Packets.cnameChain());
+        responseBenchmarks(runner, "aaaaAnswer", Packets.aaaaAnswer());
+        queryBenchmarks(runner);
+        recordTypeBenchmarks(runner);
+        for (long size = 1000; size <= maxCacheSize; size *= 10)
+            cacheBenchmarks(runner, (int) size);
+    }
+
+    /**
+     * parsing a response, which only locates its records, and then decoding every record of it
+     */
+    private static void responseBenchmarks(BenchmarkRunner runner, String name, byte[] packet) throws IOException, InterruptedException {
+        runner.run("Response.parse:" + name, () -> operations -> {
+            long result = 0;
+            for (int i = 0; i < operations; i++)
+                result += new Response(packet).getRecordCount(Response.ADDITIONAL_SECTION);
+            return result;
+        });
+        runner.run("Response.decodeAll:" + name, () -> operations -> {
+            long result = 0;
+            for (int i = 0; i < operations; i++) {
+                Response response = new Response(packet);
+                result += response.getAnswers().size() + response.getServers().size() + response.getAdditionals().size();
+            }
+            return result;
+        });
+    }
+
+    private static void queryBenchmarks(BenchmarkRunner runner) throws IOException, InterruptedException {
+        runner.run("QueryEngine.writeQuery", () -> {
+            byte[][] names = new byte[QUERY_NAMES][];
+            for (int i = 0; i < QUERY_NAMES; i++)
+                names[i] = DomainName.of("host" + i + ".example.com").getWireFormat();
+
+            DNSCache cache = new DNSCache();
+            QueryEngine engine = new QueryEngine(Runnable::run, new ServerStatistics(), new ResolverMetrics(cache),
+                    QueryEngine.DEFAULT_EDNS_PAYLOAD_SIZE, QueryEngine.DEFAULT_DNS_PORT);
+            return new BenchmarkRunner.Benchmark() {
+                @Override
+                public long run(int operations) {
+                    long result = 0;
+                    for (int i = 0; i < operations; i++) {
+                        ByteBuffer query = engine.writeQuery(i & 0xFFFF, names[i & (QUERY_NAMES - 1)], RecordType.A, true);
+                        result += query.remaining();
+                    }
+                    return result;
+                }
+
+                @Override
+                public void tearDown() {
+                    try {
+                        engine.close();
+                    } catch (IOException e) {
+                        // nothing left to do with the channel
+                    }
+                    cache.close();
+                }
+            };
+        });
+    }
+
+    private static void recordTypeBenchmarks(BenchmarkRunner runner) throws IOException, InterruptedException {
+        // the types of a typical referral and answer, and a type unknown to the resolver
+        int[] codes = {2, 2, 1, 1, 28, 5, 1, 99};
+        runner.run("RecordType.getByCode", () -> operations -> {
+            long result = 0;
+            for (int i = 0; i < operations; i++)
+                result += RecordType.getByCode(codes[i & 7]).ordinal();
+            return result;
+        });
+    }
+
+    /**
+     * benchmarks a cache of the given number of nodes, filled anew for each benchmark
+     */
+    private static void cacheBenchmarks(BenchmarkRunner runner, int size) throws IOException, InterruptedException {
+        runner.run("DNSCache.getCachedResults:hit n=" + size, () -> new CacheFixture(size) {
+            @Override
+            public long run(int operations) {
+                long result = 0;
+                int random = 1;
+                for (int i = 0; i < operations; i++) {
+                    random = next(random);
+                    result += cache.getCachedResults(nodes[(random & 0x7FFFFFFF) % size]).size();
+                }
+                return result;
+            }
+        });
+        runner.run("DNSCache.getCachedResults:miss n=" + size, () -> new CacheFixture(size) {
+            @Override
+            public long run(int operations) {
+                long result = 0;
+                for (int i = 0; i < operations; i++)
+                    result += cache.getCachedResults(missingNodes[i & (MISSING_NODES - 1)]).size();
+                return result;
+            }
+        });
+        runner.run("DNSCache.addResult:update n=" + size, () -> new CacheFixture(size) {
+            @Override
+            public long run(int operations) {
+                int random = 1;
+                for (int i = 0; i < operations; i++) {
+                    random = next(random);
+                    int index = (random & 0x7FFFFFFF) % size;
+                    cache.addResult(new ResourceRecord(nodes[index], 3600, index, 0, 4));
+                }
+                return random;
+            }
+        });
+        runner.run("DNSCache.forEachNode n=" + size, () -> new CacheFixture(size) {
+            @Override
+            public long run(int operations) {
+                long[] result = new long[1];
+                for (int i = 0; i < operations; i++)
+                    cache.forEachNode((node, results) -> result[0] += results.size());
+                return result[0];
+            }
+        });
+    }
+
+    /** A benchmark of a cache of its own, rather than the one of the resolver, grown to a number of nodes with one A
+     * record each, and closed once the benchmark has been measured.
+     */
+    private abstract static class CacheFixture implements BenchmarkRunner.Benchmark {
+        protected final DNSCache cache = new DNSCache();
+        // the nodes are held here as well, so that their interned names stay the same objects
+        protected final DNSNode[] nodes;
+        protected final DNSNode[] missingNodes = new DNSNode[MISSING_NODES];
+
+        private CacheFixture(int size) {
+            cache.setLimits(2L * size, Long.MAX_VALUE);
+            nodes = new DNSNode[size];
+            for (int i = 0; i < size; i++) {
+                nodes[i] = new DNSNode("host" + i + ".bench.example", RecordType.A);
+                cache.addResult(new ResourceRecord(nodes[i], 3600, i, 0, 4));
+            }
+            for (int i = 0; i < MISSING_NODES; i++)
+                missingNodes[i] = new DNSNode("missing" + i + ".bench.example", RecordType.A);
+        }
+
+        @Override
+        public void tearDown() {
+            cache.close();
+        }
+    }
+
+    /**
+     * @return the next value of a xorshift sequence, a cheap source of random indexes
+     */
+    private static int next(int value) {
+        value ^= value << 13;
+        value ^= value >>> 17;
+        value ^= value << 5;
+        return value;
+    }
+}
@@ -0,0 +1,398 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A small authoritative DNS server for local tests, serving a single zone from memory over both
+ * UDP and TCP, with no external dependency. Queries for a name below a delegation of the zone are
+ * answered with a referral (the NS records of the delegation, and the addresses of the
+ * nameservers as glue, if the zone has them), and any other query with an authoritative answer:
+ * the records of the name and type, a chain of CNAME records followed as far as the zone goes, or
+ * an SOA record for NODATA and NXDOMAIN.
+ *
+ * The behaviour of a real server over a real network can be imitated: every response may be
+ * delayed, a fraction of UDP queries may be dropped, UDP responses may be truncated, so that the
+ * query is sent again over TCP, and queries with an OPT record may be answered with FORMERR, as
+ * servers that predate EDNS do.
+ */
+public class FakeDnsServer implements Closeable {
+
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int FLAG_AUTHORITATIVE = 0x0400;
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int RCODE_NAME_ERROR = 3;
+    private static final int RCODE_REFUSED = 5;
+    private static final int OPT = 41;
+    private static final int MAX_UDP_LENGTH = 512;
+    private static final int MAX_MESSAGE_LENGTH = 65535;
+    private static final long NEGATIVE_TTL = 60;
+    private static final int MAX_CNAME_CHAIN = 8;
+    // returned by findDelegation for names outside the zone
+    private static final DomainName OUTSIDE_ZONE = DomainName.of("outside.zone.invalid");
+
+    /** A record of the zone. */
+    private static class Record {
+        private final DomainName owner;
+        private final RecordType type;
+        private final long ttl;
+        private final byte[] data;
+        // the name in the data of NS and CNAME records
+        private final DomainName target;
+
+        private Record(DomainName owner, RecordType type, long ttl, byte[] data, DomainName target) {
+            this.owner = owner;
+            this.type = type;
+            this.ttl = ttl;
+            this.data = data;
+            this.target = target;
+        }
+    }
+
+    private final DomainName origin;
+    private final InetSocketAddress address;
+    private final Map<DomainName, List<Record>> records = new ConcurrentHashMap<>();
+    private final Set<DomainName> delegations = ConcurrentHashMap.newKeySet();
+    private final AtomicLong queryCount = new AtomicLong();
+    private final ScheduledExecutorService delayedResponses = Executors.newSingleThreadScheduledExecutor(daemon("fake-dns-delay"));
+    private final ExecutorService connections = Executors.newCachedThreadPool(daemon("fake-dns-tcp"));
+
+    private volatile long latencyMillis = 0;
+    private volatile double lossRate = 0;
+    private volatile boolean truncating = false;
+    private volatile boolean rejectingEdns = false;
+
+    private DatagramChannel udp;
+    private ServerSocket tcp;
+
+    /**
+     * CONSTRUCTOR: FakeDnsServer Object
+     * @param address address the server listens on, e.g., 127.0.0.1
+     * @param port port the server listens on, over both UDP and TCP
+     * @param origin name of the zone served, "" for the root zone
+     */
+    public FakeDnsServer(InetAddress address, int port, String origin) {
+        this.address = new InetSocketAddress(address, port);
+        this.origin = DomainName.of(origin);
+    }
+
+    /**
+     * adds a record to the zone, NS records owned by a name below the origin of the zone delegate that name
+     * @param owner owner of the record
+     * @param type A, AAAA, NS or CNAME
+     * @param ttl TTL of the record, in seconds
+     * @param data an IP address for A and AAAA records, a host name for NS and CNAME records
+     */
+    public void addRecord(String owner, RecordType type, long ttl, String data) {
+        DomainName name = DomainName.of(owner);
+        Record record;
+        if (type == RecordType.A || type == RecordType.AAAA) {
+            try {
+                // a literal address, which is never looked up
+                record = new Record(name, type, ttl, InetAddress.getByName(data).getAddress(), null);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid address " + data, e);
+            }
+        } else {
+            DomainName target = DomainName.of(data);
+            record = new Record(name, type, ttl, target.getWireFormat(), target);
+        }
+        records.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>()).add(record);
+        if (type == RecordType.NS && !name.equals(origin))
+            delegations.add(name);
+    }
+
+    /** @param latencyMillis delay before every response is sent, in milliseconds */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /** @param lossRate fraction of UDP queries that are dropped without a response, between 0 and 1 */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /** @param truncating true if every UDP response is truncated, so that clients must query again over TCP */
+    public void setTruncating(boolean truncating) {
+        this.truncating = truncating;
+    }
+
+    /** @param rejectingEdns true if every query with an OPT record is answered with FORMERR and no records */
+    public void setRejectingEdns(boolean rejectingEdns) {
+        this.rejectingEdns = rejectingEdns;
+    }
+
+    /** @return Number of queries received so far, over UDP and TCP, including dropped ones. */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    public InetAddress getAddress() {
+        return address.getAddress();
+    }
+
+    /**
+     * starts listening for queries
+     * @throws IOException if the address can't be bound, e.g., because the port is in use
+     */
+    public void start() throws IOException {
+        udp = DatagramChannel.open();
+        udp.bind(address);
+        tcp = new ServerSocket();
+        tcp.setReuseAddress(true);
+        tcp.bind(address);
+        daemon("fake-dns-udp").newThread(this::serveUdp).start();
+        daemon("fake-dns-accept").newThread(this::acceptConnections).start();
+    }
+
+    private void serveUdp() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+        while (true) {
+            SocketAddress client;
+            try {
+                buffer.clear();
+                client = udp.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            queryCount.incrementAndGet();
+            if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate)
+                continue;
+
+            byte[] response = answer(Arrays.copyOf(buffer.array(), buffer.position()), false);
+            if (response != null)
+                respond(() -> {
+                    try {
+                        udp.send(ByteBuffer.wrap(response), client);
+                    } catch (IOException e) {
+                        // the client will time out
+                    }
+                });
+        }
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = tcp.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                connections.execute(() -> serveConnection(socket));
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * answers every query of a connection, possibly pipelined, in whatever order the delays let them complete
+     */
+    private void serveConnection(Socket socket) {
+        try (Socket connection = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                queryCount.incrementAndGet();
+                byte[] response = answer(query, true);
+                if (response != null)
+                    respond(() -> {
+                        try {
+                            synchronized (out) {
+                                out.writeShort(response.length);
+                                out.write(response);
+                                out.flush();
+                            }
+                        } catch (IOException e) {
+                            // the client closed the connection
+                        }
+                    });
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+    }
+
+    private void respond(Runnable send) {
+        long latency = latencyMillis;
+        if (latency <= 0) {
+            send.run();
+            return;
+        }
+        try {
+            delayedResponses.schedule(send, latency, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the server is closed
+        }
+    }
+
+    /**
+     * @param query the query as received
+     * @param overTcp true if the response is sent over TCP, in which case it is never truncated
+     * @return the response, or null if the query is malformed
+     */
+    private byte[] answer(byte[] query, boolean overTcp) {
+        ByteBuffer in = ByteBuffer.wrap(query);
+        if (query.length < 12 || in.getShort(4) != 1) return null;
+
+        // the question, whose name is never compressed in a query
+        StringBuilder qname = new StringBuilder();
+        int position = 12;
+        while (position < query.length && query[position] != 0) {
+            int length = query[position] & 0xFF;
+            if (length > 63 || position + 1 + length >= query.length) return null;
+            if (qname.length() > 0) qname.append('.');
+            for (int i = 0; i < length; i++)
+                qname.append((char) query[position + 1 + i]);
+            position += 1 + length;
+        }
+        int questionEnd = position + 5;
+        if (questionEnd > query.length) return null;
+        RecordType qtype = RecordType.getByCode(in.getShort(position + 1) & 0xFFFF);
+
+        // the UDP payload size of an OPT record in the additional section, if any
+        int limit = MAX_UDP_LENGTH;
+        boolean edns = in.getShort(10) != 0 && questionEnd + 11 <= query.length && query[questionEnd] == 0 &&
+                (in.getShort(questionEnd + 1) & 0xFFFF) == OPT;
+        if (edns)
+            limit = Math.max(MAX_UDP_LENGTH, in.getShort(questionEnd + 3) & 0xFFFF);
+
+        List<Record> answers = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        List<Record> additional = new ArrayList<>();
+        int flags = FLAG_RESPONSE;
+        int rcode = 0;
+
+        DomainName name = DomainName.of(qname.toString());
+        DomainName delegation = findDelegation(name);
+        if (edns && rejectingEdns) {
+            rcode = RCODE_FORMAT_ERROR;
+        } else if (delegation == OUTSIDE_ZONE) {
+            rcode = RCODE_REFUSED;
+        } else if (delegation != null) {
+            // referral, with the addresses of the nameservers the zone knows of
+            for (Record nameserver : records.get(delegation)) {
+                if (nameserver.type != RecordType.NS) continue;
+                authority.add(nameserver);
+                for (Record glue : records.getOrDefault(nameserver.target, Collections.emptyList()))
+                    if (glue.type == RecordType.A || glue.type == RecordType.AAAA)
+                        additional.add(glue);
+            }
+        } else {
+            flags |= FLAG_AUTHORITATIVE;
+            List<Record> owned = records.getOrDefault(name, Collections.emptyList());
+            // CNAMEs are followed within the zone, as real servers do, so a chain ends up in a single answer
+            DomainName owner = name;
+            for (int hops = 0; hops < MAX_CNAME_CHAIN; hops++) {
+                Record cname = null;
+                int found = answers.size();
+                for (Record record : records.getOrDefault(owner, Collections.emptyList())) {
+                    if (record.type == qtype)
+                        answers.add(record);
+                    else if (record.type == RecordType.CNAME)
+                        cname = record;
+                }
+                if (answers.size() > found || cname == null) break;
+                answers.add(cname);
+                if (findDelegation(cname.target) != null) break;
+                owner = cname.target;
+            }
+            if (answers.isEmpty()) {
+                if (owned.isEmpty())
+                    rcode = RCODE_NAME_ERROR;
+                authority.add(soa());
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+        out.putShort(in.getShort(0));
+        out.putShort((short) (flags | rcode));
+        out.putShort((short) 1);
+        out.putShort((short) answers.size());
+        out.putShort((short) authority.size());
+        out.putShort((short) additional.size());
+        out.put(query, 12, questionEnd - 12);
+        for (List<Record> section : Arrays.asList(answers, authority, additional))
+            for (Record record : section) {
+                out.put(record.owner.getWireFormat());
+                out.putShort((short) record.type.getCode());
+                out.putShort((short) 1);
+                out.putInt((int) record.ttl);
+                out.putShort((short) record.data.length);
+                out.put(record.data);
+            }
+
+        if (!overTcp && (truncating || out.position() > limit)) {
+            // only the header and question are sent, with the TC bit set and no records
+            out.putShort(2, (short) (flags | rcode | FLAG_TRUNCATED));
+            out.putInt(6, 0);
+            out.putShort(10, (short) 0);
+            out.position(questionEnd);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * @return the delegated name closest to the origin that encloses the name, null if the name is not delegated,
+     *         or OUTSIDE_ZONE if the name is not in the zone at all
+     */
+    private DomainName findDelegation(DomainName name) {
+        DomainName delegation = null;
+        for (DomainName n = name; n != null; n = n.getParent()) {
+            if (n.equals(origin))
+                return delegation;
+            if (delegations.contains(n))
+                delegation = n;
+        }
+        return OUTSIDE_ZONE;
+    }
+
+    private Record soa() {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        try {
+            String suffix = origin.equals(DomainName.ROOT) ? "" : "." + origin;
+            out.write(DomainName.of("ns" + suffix).getWireFormat());
+            out.write(DomainName.of("hostmaster" + suffix).getWireFormat());
+            out.writeInt(1);            // SERIAL
+            out.writeInt(7200);         // REFRESH
+            out.writeInt(3600);         // RETRY
+            out.writeInt(1209600);      // EXPIRE
+            out.writeInt((int) NEGATIVE_TTL);   // MINIMUM
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Record(origin, RecordType.SOA, NEGATIVE_TTL, data.toByteArray(), null);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * stops listening, queries not answered yet are dropped
+     */
+    @Override
+    public void close() throws IOException {
+        delayedResponses.shutdownNow();
+        connections.shutdownNow();
+        if (udp != null) udp.close();
+        if (tcp != null) tcp.close();
+    }
+}
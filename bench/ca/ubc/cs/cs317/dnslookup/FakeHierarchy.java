@@ -0,0 +1,151 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A synthetic DNS hierarchy of fake servers on loopback addresses, all listening on the same port:
+ *
+ *   - the root zone, at 127.0.0.1, delegating com, net and org, with glue;
+ *   - each of these TLDs, at 127.0.1.x, delegating a number of domains;
+ *   - each domain, at 127.2.x.y, holding a number of hosts with an A and an AAAA record, and a
+ *     www alias (a CNAME record) for every tenth host, pointing to a host of another domain.
+ *
+ * Most domains are delegated to a nameserver in the domain itself, with glue. Every fourth domain
+ * is delegated to a nameserver of the dns-hosting.net zone instead, without glue, so that the
+ * address of the nameserver must be resolved separately, as for many real domains.
+ *
+ * Addresses of 127.0.0.0/8 other than 127.0.0.1 are only routed to the loopback interface out of
+ * the box on Linux.
+ */
+public class FakeHierarchy implements Closeable {
+
+    private static final String[] TLDS = {"com", "net", "org"};
+    private static final String HOSTING_ZONE = "dns-hosting.net";
+    private static final long DELEGATION_TTL = 172800;
+
+    private final FakeDnsServer root;
+    private final List<FakeDnsServer> tldServers = new ArrayList<>();
+    private final List<FakeDnsServer> zoneServers = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * CONSTRUCTOR: FakeHierarchy Object, whose servers are not listening yet
+     * @param port port every server listens on
+     * @param domainsPerTld number of domains delegated by each TLD
+     * @param hostsPerDomain number of hosts of each domain
+     * @param ttl TTL of the records of the hosts, in seconds
+     */
+    public FakeHierarchy(int port, int domainsPerTld, int hostsPerDomain, long ttl) throws IOException {
+        root = new FakeDnsServer(InetAddress.getByName("127.0.0.1"), port, "");
+        FakeDnsServer hosting = new FakeDnsServer(InetAddress.getByName("127.0.1.100"), port, HOSTING_ZONE);
+        hosting.addRecord(HOSTING_ZONE, RecordType.NS, DELEGATION_TTL, "ns." + HOSTING_ZONE);
+        hosting.addRecord("ns." + HOSTING_ZONE, RecordType.A, DELEGATION_TTL, "127.0.1.100");
+
+        int domainCount = TLDS.length * domainsPerTld;
+        for (int t = 0; t < TLDS.length; t++) {
+            String tld = TLDS[t];
+            String tldAddress = "127.0.1." + (t + 1);
+            FakeDnsServer tldServer = new FakeDnsServer(InetAddress.getByName(tldAddress), port, tld);
+            root.addRecord(tld, RecordType.NS, DELEGATION_TTL, "ns." + tld);
+            root.addRecord("ns." + tld, RecordType.A, DELEGATION_TTL, tldAddress);
+            tldServer.addRecord(tld, RecordType.NS, DELEGATION_TTL, "ns." + tld);
+            tldServer.addRecord("ns." + tld, RecordType.A, DELEGATION_TTL, tldAddress);
+            tldServers.add(tldServer);
+
+            for (int d = 0; d < domainsPerTld; d++) {
+                int index = t * domainsPerTld + d;
+                String domain = domainName(index, domainsPerTld);
+                String address = "127.2." + (index / 250) + "." + (index % 250 + 1);
+                FakeDnsServer zone = new FakeDnsServer(InetAddress.getByName(address), port, domain);
+
+                String nameserver;
+                if (index % 4 == 3) {
+                    nameserver = "ns" + index + "." + HOSTING_ZONE;
+                    hosting.addRecord(nameserver, RecordType.A, DELEGATION_TTL, address);
+                } else {
+                    nameserver = "ns." + domain;
+                    tldServer.addRecord(nameserver, RecordType.A, DELEGATION_TTL, address);
+                    zone.addRecord(nameserver, RecordType.A, DELEGATION_TTL, address);
+                }
+                tldServer.addRecord(domain, RecordType.NS, DELEGATION_TTL, nameserver);
+                zone.addRecord(domain, RecordType.NS, DELEGATION_TTL, nameserver);
+
+                for (int h = 0; h < hostsPerDomain; h++) {
+                    String host = "host" + h + "." + domain;
+                    zone.addRecord(host, RecordType.A, ttl, "10." + (index >> 8 & 0xFF) + "." + (index & 0xFF) + "." + (h % 250 + 1));
+                    zone.addRecord(host, RecordType.AAAA, ttl, "fd00::" + Integer.toHexString(index) + ":" + Integer.toHexString(h));
+                    names.add(host);
+                    if (h % 10 == 0) {
+                        String alias = "www" + h + "." + domain;
+                        zone.addRecord(alias, RecordType.CNAME, ttl, "host" + h + "." + domainName((index + 1) % domainCount, domainsPerTld));
+                        names.add(alias);
+                    }
+                }
+                zoneServers.add(zone);
+            }
+        }
+        tldServers.get(1).addRecord(HOSTING_ZONE, RecordType.NS, DELEGATION_TTL, "ns." + HOSTING_ZONE);
+        tldServers.get(1).addRecord("ns." + HOSTING_ZONE, RecordType.A, DELEGATION_TTL, "127.0.1.100");
+        tldServers.add(hosting);
+    }
+
+    /**
+     * @return the name of a domain, the domains of each TLD being numbered after those of the previous one
+     */
+    private static String domainName(int index, int domainsPerTld) {
+        return "domain" + index + "." + TLDS[index / domainsPerTld];
+    }
+
+    public InetAddress getRootAddress() {
+        return root.getAddress();
+    }
+
+    /** @return Every name of the hierarchy that has addresses, directly or through an alias. */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    public FakeDnsServer getRootServer() {
+        return root;
+    }
+
+    /** @return The servers of the TLDs, and of the zone of the nameservers of the domains without glue. */
+    public List<FakeDnsServer> getTldServers() {
+        return Collections.unmodifiableList(tldServers);
+    }
+
+    /** @return The servers of the domains, one per domain. */
+    public List<FakeDnsServer> getZoneServers() {
+        return Collections.unmodifiableList(zoneServers);
+    }
+
+    /**
+     * @return every server of the hierarchy
+     */
+    public List<FakeDnsServer> getServers() {
+        List<FakeDnsServer> servers = new ArrayList<>();
+        servers.add(root);
+        servers.addAll(tldServers);
+        servers.addAll(zoneServers);
+        return servers;
+    }
+
+    /**
+     * starts every server of the hierarchy
+     * @throws IOException if an address can't be bound
+     */
+    public void start() throws IOException {
+        for (FakeDnsServer server : getServers())
+            server.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FakeDnsServer server : getServers())
+            server.close();
+    }
+}
@@ -0,0 +1,151 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** A load generator for the resolver, which runs it against a fake DNS hierarchy in the same
+ * process (see FakeHierarchy), so that it can be measured without a network or real servers. Run
+ * with "make loadtest", optionally with LOAD_ARGS set to any of:
+ *
+ *   -q qps          lookups started per second (default 1000)
+ *   -d seconds      duration of the run (default 10)
+ *   -n domains      domains per TLD (default 10)
+ *   -h hosts        hosts per domain (default 100)
+ *   -t ttl          TTL of the host records, in seconds (default 300)
+ *   -l millis       latency of every fake server (default 0)
+ *   -L rate         fraction of UDP queries each fake server drops (default 0)
+ *   -T fraction     fraction of the domain servers that truncate every UDP response (default 0)
+ *   -F fraction     fraction of the domain servers that answer FORMERR to EDNS queries (default 0)
+ *   -e size         EDNS payload size of the resolver, 0 to disable EDNS
+ *   -p port         port of the fake servers (default 10053)
+ *
+ * Lookups are started on a fixed schedule, whether or not earlier ones have completed (an open
+ * loop), for names and types (A or AAAA) picked at random. The latency of a lookup is measured
+ * from the time it was scheduled to start, not from the time it actually started, so that a
+ * resolver falling behind the schedule shows up in the latencies instead of slowing the load.
+ */
+public class LoadGenerator {
+
+    private static final int DEFAULT_PORT = 10053;
+    private static final long COMPLETION_TIMEOUT_SECONDS = 30;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double qps = 1000;
+        long seconds = 10;
+        int domainsPerTld = 10;
+        int hostsPerDomain = 100;
+        long ttl = 300;
+        long latencyMillis = 0;
+        double lossRate = 0;
+        double truncatingFraction = 0;
+        double rejectingEdnsFraction = 0;
+        int ednsPayloadSize = QueryEngine.DEFAULT_EDNS_PAYLOAD_SIZE;
+        int port = DEFAULT_PORT;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-q": qps = Double.parseDouble(value); break;
+                case "-d": seconds = Long.parseLong(value); break;
+                case "-n": domainsPerTld = Integer.parseInt(value); break;
+                case "-h": hostsPerDomain = Integer.parseInt(value); break;
+                case "-t": ttl = Long.parseLong(value); break;
+                case "-l": latencyMillis = Long.parseLong(value); break;
+                case "-L": lossRate = Double.parseDouble(value); break;
+                case "-T": truncatingFraction = Double.parseDouble(value); break;
+                case "-F": rejectingEdnsFraction = Double.parseDouble(value); break;
+                case "-e": ednsPayloadSize = Integer.parseInt(value); break;
+                case "-p": port = Integer.parseInt(value); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        FakeHierarchy hierarchy = new FakeHierarchy(port, domainsPerTld, hostsPerDomain, ttl);
+        for (FakeDnsServer server : hierarchy.getServers()) {
+            server.setLatency(latencyMillis);
+            server.setLossRate(lossRate);
+        }
+        List<FakeDnsServer> zoneServers = hierarchy.getZoneServers();
+        for (int i = 0; i < Math.round(truncatingFraction * zoneServers.size()); i++)
+            zoneServers.get(i).setTruncating(true);
+        // counted from the other end, so that they only overlap with the truncating servers if both add up to more than 1
+        for (int i = 0; i < Math.round(rejectingEdnsFraction * zoneServers.size()); i++)
+            zoneServers.get(zoneServers.size() - 1 - i).setRejectingEdns(true);
+        hierarchy.start();
+        DNSLookupService.start(hierarchy.getRootAddress(), ednsPayloadSize, port);
+
+        List<String> names = hierarchy.getNames();
+        int total = (int) Math.min(Integer.MAX_VALUE - 8, Math.round(qps * seconds));
+        long[] latencies = new long[total];
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch completed = new CountDownLatch(total);
+        Random random = new Random(1);
+        System.out.format(Locale.ROOT, "%d lookups at %.0f/s over %d names, TTL %d s, server latency %d ms, loss %.3f, %d truncating servers, %d servers without EDNS\n",
+                total, qps, names.size(), ttl, latencyMillis, lossRate, Math.round(truncatingFraction * zoneServers.size()),
+                Math.round(rejectingEdnsFraction * zoneServers.size()));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long intendedStart = start + (long) (i * 1e9 / qps);
+            long wait = intendedStart - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+
+            DNSNode node = new DNSNode(names.get(random.nextInt(names.size())), random.nextBoolean() ? RecordType.A : RecordType.AAAA);
+            int index = i;
+            DNSLookupService.lookup(node).whenComplete((results, ex) -> {
+                latencies[index] = System.nanoTime() - intendedStart;
+                if (ex != null || results.isEmpty())
+                    failures.incrementAndGet();
+                completed.countDown();
+            });
+        }
+        boolean finished = completed.await(COMPLETION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        long lookups = total - completed.getCount();
+        long[] sorted = Arrays.copyOf(latencies, total);
+        Arrays.sort(sorted);
+        // lookups that never completed sort first with a latency of 0, and are left out
+        sorted = Arrays.copyOfRange(sorted, (int) (total - lookups), total);
+
+        System.out.format(Locale.ROOT, "completed %d lookups in %.2f s (%.0f/s), %d failed%s\n", lookups, elapsed / 1e9,
+                lookups * 1e9 / elapsed, failures.get(), finished ? "" : ", " + completed.getCount() + " still outstanding");
+        System.out.format(Locale.ROOT, "latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p999 %.3f  max %.3f\n",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+
+        long rootQueries = hierarchy.getRootServer().getQueryCount();
+        long tldQueries = countQueries(hierarchy.getTldServers());
+        long zoneQueries = countQueries(zoneServers);
+        long upstreamQueries = rootQueries + tldQueries + zoneQueries;
+        System.out.format(Locale.ROOT, "upstream queries: %d (root %d, TLD %d, domain %d), %.3f per lookup\n",
+                upstreamQueries, rootQueries, tldQueries, zoneQueries, lookups == 0 ? 0 : (double) upstreamQueries / lookups);
+
+        DNSLookupService.shutdown();
+        hierarchy.close();
+    }
+
+    /**
+     * @return the latency below which the given fraction of the sorted latencies are, in milliseconds
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)] / 1e6;
+    }
+
+    private static long countQueries(List<FakeDnsServer> servers) {
+        long count = 0;
+        for (FakeDnsServer server : servers)
+            count += server.getQueryCount();
+        return count;
+    }
+}
@@ -0,0 +1,181 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Response packets used by the benchmarks, laid out as real servers send them: names are
+ * compressed against every earlier name of the packet (RFC 1035, section 4.1.4), and the records
+ * and their order are those of actual responses for these names.
+ */
+public class Packets {
+
+    private static final int A = 1;
+    private static final int NS = 2;
+    private static final int CNAME = 5;
+    private static final int AAAA = 28;
+
+    private static final String[] ROOT_GLUE_V4 = {
+            "192.5.6.30", "192.33.14.30", "192.26.92.30", "192.31.80.30", "192.12.94.30", "192.35.51.30",
+            "192.42.93.30", "192.54.112.30", "192.43.172.30", "192.48.79.30", "192.52.178.30", "192.41.162.30",
+            "192.55.83.30"};
+    private static final String[] ROOT_GLUE_V6 = {
+            "2001:503:a83e::2:30", "2001:503:231d::2:30", "2001:503:83eb::30", "2001:500:856e::30",
+            "2001:502:1ca1::30", "2001:503:d414::30", "2001:503:eea3::30", "2001:502:8cc::30",
+            "2001:503:39c1::30", "2001:502:7094::30", "2001:503:d2d::30", "2001:500:d937::30",
+            "2001:501:b1f9::30"};
+
+    /**
+     * @return the referral of a root server for "www.google.com": the 13 nameservers of "com", with
+     *         an IPv4 and an IPv6 glue record for each of them
+     */
+    public static byte[] rootReferral() {
+        Builder builder = new Builder(0x1234, 0x8000, "www.google.com", A);
+        for (char letter = 'a'; letter <= 'm'; letter++)
+            builder.nameRecord(Builder.NAMESERVER, "com", NS, 172800, letter + ".gtld-servers.net");
+        for (int i = 0; i < 13; i++) {
+            String name = (char) ('a' + i) + ".gtld-servers.net";
+            builder.record(Builder.ADDITIONAL, name, A, 172800, ipv4(ROOT_GLUE_V4[i]));
+            builder.record(Builder.ADDITIONAL, name, AAAA, 172800, ipv6(ROOT_GLUE_V6[i]));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the authoritative answer for "www.microsoft.com", a chain of three CNAME records to a
+     *         CDN host, and the address of that host
+     */
+    public static byte[] cnameChain() {
+        Builder builder = new Builder(0x2345, 0x8400, "www.microsoft.com", A);
+        builder.nameRecord(Builder.ANSWER, "www.microsoft.com", CNAME, 3600, "www.microsoft.com-c-3.edgekey.net");
+        builder.nameRecord(Builder.ANSWER, "www.microsoft.com-c-3.edgekey.net", CNAME, 900,
+                "www.microsoft.com-c-3.edgekey.net.globalredir.akadns.net");
+        builder.nameRecord(Builder.ANSWER, "www.microsoft.com-c-3.edgekey.net.globalredir.akadns.net", CNAME, 900,
+                "e13678.dscb.akamaiedge.net");
+        builder.record(Builder.ANSWER, "e13678.dscb.akamaiedge.net", A, 20, ipv4("23.52.176.139"));
+        return builder.build();
+    }
+
+    /**
+     * @return the authoritative answer of "www.google.com" for its IPv6 addresses
+     */
+    public static byte[] aaaaAnswer() {
+        Builder builder = new Builder(0x3456, 0x8400, "www.google.com", AAAA);
+        builder.record(Builder.ANSWER, "www.google.com", AAAA, 300, ipv6("2607:f8b0:400a:800::2004"));
+        builder.record(Builder.ANSWER, "www.google.com", AAAA, 300, ipv6("2607:f8b0:400a:801::2004"));
+        builder.record(Builder.ANSWER, "www.google.com", AAAA, 300, ipv6("2607:f8b0:400a:803::2004"));
+        builder.record(Builder.ANSWER, "www.google.com", AAAA, 300, ipv6("2607:f8b0:400a:804::2004"));
+        return builder.build();
+    }
+
+    private static byte[] ipv4(String address) {
+        String[] parts = address.split("\\.");
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++)
+            bytes[i] = (byte) Integer.parseInt(parts[i]);
+        return bytes;
+    }
+
+    private static byte[] ipv6(String address) {
+        String[] halves = address.split("::", -1);
+        String[] head = halves[0].isEmpty() ? new String[0] : halves[0].split(":");
+        String[] tail = halves.length < 2 || halves[1].isEmpty() ? new String[0] : halves[1].split(":");
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < head.length; i++) {
+            int group = Integer.parseInt(head[i], 16);
+            bytes[2 * i] = (byte) (group >> 8);
+            bytes[2 * i + 1] = (byte) group;
+        }
+        for (int i = 0; i < tail.length; i++) {
+            int group = Integer.parseInt(tail[i], 16);
+            bytes[16 - 2 * (tail.length - i)] = (byte) (group >> 8);
+            bytes[17 - 2 * (tail.length - i)] = (byte) group;
+        }
+        return bytes;
+    }
+
+    /** Writes a response packet, section by section. Records must be added in section order.
+     */
+    private static class Builder {
+        private static final int ANSWER = 0;
+        private static final int NAMESERVER = 1;
+        private static final int ADDITIONAL = 2;
+
+        private final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        // offset of every name (and suffix of a name) already written, to compress later names against
+        private final Map<String, Integer> nameOffsets = new HashMap<>();
+        private final int[] counts = new int[3];
+
+        private Builder(int id, int flags, String question, int type) {
+            writeShort(id);
+            writeShort(flags);
+            writeShort(1);
+            for (int i = 0; i < 3; i++)
+                writeShort(0);      // record counts, filled in by build
+            writeName(packet, question, packet.size());
+            writeShort(type);
+            writeShort(1);
+        }
+
+        private void record(int section, String name, int type, long ttl, byte[] rdata) {
+            writeRecordHeader(section, name, type, ttl);
+            writeShort(rdata.length);
+            packet.write(rdata, 0, rdata.length);
+        }
+
+        /**
+         * adds an NS or CNAME record, whose data is a name, compressed against the packet like any other name
+         */
+        private void nameRecord(int section, String name, int type, long ttl, String target) {
+            writeRecordHeader(section, name, type, ttl);
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            writeName(rdata, target, packet.size() + 2);
+            writeShort(rdata.size());
+            packet.write(rdata.toByteArray(), 0, rdata.size());
+        }
+
+        private void writeRecordHeader(int section, String name, int type, long ttl) {
+            counts[section]++;
+            writeName(packet, name, packet.size());
+            writeShort(type);
+            writeShort(1);
+            writeShort((int) (ttl >>> 16));
+            writeShort((int) ttl);
+        }
+
+        private void writeName(ByteArrayOutputStream out, String name, int offset) {
+            while (!name.isEmpty()) {
+                Integer pointer = nameOffsets.get(name);
+                if (pointer != null) {
+                    out.write(0xC0 | pointer >> 8);
+                    out.write(pointer);
+                    return;
+                }
+                if (offset < 0x4000)
+                    nameOffsets.put(name, offset);
+                int dot = name.indexOf('.');
+                String label = dot < 0 ? name : name.substring(0, dot);
+                out.write(label.length());
+                for (int i = 0; i < label.length(); i++)
+                    out.write(label.charAt(i));
+                offset += 1 + label.length();
+                name = dot < 0 ? "" : name.substring(dot + 1);
+            }
+            out.write(0);
+        }
+
+        private void writeShort(int value) {
+            packet.write(value >> 8);
+            packet.write(value);
+        }
+
+        private byte[] build() {
+            byte[] bytes = packet.toByteArray();
+            for (int i = 0; i < 3; i++) {
+                bytes[6 + 2 * i] = (byte) (counts[i] >> 8);
+                bytes[7 + 2 * i] = (byte) counts[i];
+            }
+            return bytes;
+        }
+    }
+}
@@ -1,21 +1,141 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server. Expired results are never returned to the
+ * user as cached results, and are deleted in the background by a timing wheel that visits each
+ * node as soon as one of its records expires, whether or not the node is looked up again.
+ *
+ * The cache may be shared by any number of concurrent lookups. Nodes are spread over a fixed
+ * number of shards, each a concurrent map, and the set of records of a node is never modified
+ * once stored: adding a record replaces the whole set atomically. Lookups therefore never lock,
+ * and always see a consistent set of records.
+ *
+ * The records of A and AAAA nodes are stored packed into arrays of longs (see RecordSet), and
+ * only turned back into ResourceRecord objects when looked up.
+ *
+ * The cache is bounded both in number of records and in (estimated) bytes. When a shard grows
+ * over its share of these limits, its least recently used nodes are evicted, although a newly
+ * added node is only admitted if it has been used at least as often as the node it would evict
+ * (TinyLFU), so that a burst of one-off names does not flush popular ones.
+ *
+ * Expired records can be kept for a while longer (RFC 8767), so that they may still be served,
+ * through getStaleResults, when they can't be resolved again. They are then only removed by the
+ * timing wheel once that stale window has passed as well.
+ *
+ * Popular nodes can be refreshed ahead of their expiration: once a configurable fraction of the
+ * TTL of an A or AAAA node has passed, the node is handed to a refresher if it was found in the
+ * cache often enough in the meantime (hits are counted per node until then), and the refresher
+ * swaps the fresh records in with replaceResults. Lookups of a hot name
+ * therefore keep hitting the cache instead of waiting for a new resolution once it expires.
+ *
+ * The cache can be saved to, and restored from, a snapshot file, so that a restarted resolver
+ * doesn't need to learn the delegations of the DNS hierarchy again. Expiration times are stored
+ * in the snapshot as wall clock times, and records that expired in the meantime are not restored.
  */
 public class DNSCache {
 
+    private static final int SHARD_COUNT = 16;
+
+    public static final long DEFAULT_MAX_RECORDS = 1000000;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    // approximate heap used by each cached node, including the map entries holding it
+    private static final int NODE_OVERHEAD = 200;
+
+    private static final long EXPIRY_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // TTL of expired records when they are served, as recommended by RFC 8767
+    public static final long STALE_TTL = 30;
+
+    // number of recent cache hits that makes a node worth refreshing ahead of its expiration
+    private static final int REFRESH_MIN_HITS = 3;
+
+    // snapshot file format
+    private static final int SNAPSHOT_MAGIC = 0x444E5343;  // "DNSC"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte SNAPSHOT_ADDRESS = 1;
+    private static final byte SNAPSHOT_TEXT = 2;
+    private static final byte SNAPSHOT_NEGATIVE = 3;
+    private static final int SNAPSHOT_END = 0;            // in place of a number of records
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+
+    private volatile long maxRecordsPerShard;
+    private volatile long maxBytesPerShard;
+    private volatile FrequencySketch sketch;
+    // how long expired records are kept, in case they need to be served stale
+    private volatile long staleNanos = 0;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder negativeHitCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+
+    // nodes scheduled to be visited when their earliest record expires
+    private final TimingWheel<DNSNode> expiryWheel = new TimingWheel<>(EXPIRY_TICK_NANOS, this::removeExpired);
+
+    // nodes scheduled to be refreshed, if they are popular, once part of their TTL has passed
+    private final TimingWheel<DNSNode> refreshWheel = new TimingWheel<>(EXPIRY_TICK_NANOS, this::refreshIfPopular);
+    private volatile Consumer<DNSNode> refresher;
+    private volatile double refreshFraction;
+    // cache hits of each node scheduled to be refreshed, since it was scheduled
+    private final Map<DNSNode, AtomicInteger> refreshHits = new ConcurrentHashMap<>();
+
+    // advances both wheels, until the cache is closed
+    private final Thread expiryThread;
+
+    /**
+     * CONSTRUCTOR: DNSCache Object, independent of the instance the resolver uses, e.g., for benchmarks. Its
+     * records are expired by a thread of its own, which runs until the cache is closed.
+     */
+    DNSCache() {
+        for (int i = 0; i < SHARD_COUNT; i++)
+            shards[i] = new Shard();
+        setLimits(DEFAULT_MAX_RECORDS, DEFAULT_MAX_BYTES);
+
+        expiryThread = new Thread(() -> {
+            while (true) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(EXPIRY_TICK_NANOS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                expiryWheel.advance(System.nanoTime());
+                refreshWheel.advance(System.nanoTime());
+            }
+        }, "dns-cache-expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
 
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
+    /** Stops the thread that expires and refreshes records. Records can still be found and added
+     * afterwards, and expired ones are still left out of the results, but they are no longer
+     * removed from the cache, and nothing is refreshed ahead of its expiration anymore. Only meant
+     * for caches created apart from the instance of the resolver, once they are no longer used.
+     */
+    void close() {
+        expiryThread.interrupt();
+    }
+
+    /** Singleton retrieval method. The resolver uses a single instance of the DNS cache, which
+     * this method returns.
      *
      * @return Instance of a DNS cache.
      */
@@ -23,31 +143,164 @@ public class DNSCache {
         return instance;
     }
 
-    public Map<DNSNode, Map<ResourceRecord, ResourceRecord>> getCache(){
-        Map<DNSNode, Map<ResourceRecord, ResourceRecord>> results = cachedResults;
-        return cachedResults;
+    /** Changes how much the cache may hold. Both limits are approximate: they are enforced
+     * separately on each shard of the cache, and the size of a record is estimated from the
+     * length of its host name and result. Nodes are evicted immediately if the cache is
+     * over the new limits.
+     *
+     * @param maxRecords Maximum number of records held in the cache.
+     * @param maxBytes   Maximum estimated heap used by the cached records, in bytes.
+     */
+    public void setLimits(long maxRecords, long maxBytes) {
+        this.sketch = new FrequencySketch(maxRecords);
+        this.maxRecordsPerShard = Math.max(1, maxRecords / SHARD_COUNT);
+        this.maxBytesPerShard = Math.max(1, maxBytes / SHARD_COUNT);
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                evict(shard, null);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /** Changes how long expired records are kept in the cache, to be served stale if they can't be
+     * resolved again. Records that expired before this call are not affected.
+     *
+     * @param seconds Time after their expiration during which records are kept, 0 to remove them
+     *                as soon as they expire.
+     */
+    public void setStaleWindow(long seconds) {
+        this.staleNanos = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /** Enables refresh-ahead: A and AAAA nodes that are found in the cache often enough are
+     * handed to a refresher once a fraction of their TTL has passed, so that their records can be
+     * resolved again before they expire. Only nodes added to the cache after this call are
+     * refreshed.
+     *
+     * @param fraction  Fraction of the TTL of a node after which it is refreshed, between 0 and 1.
+     * @param refresher Action resolving a node again, and passing the fresh records to
+     *                  replaceResults. It is run on the expiry thread of the cache, so it must
+     *                  not block.
+     */
+    public void setRefreshAhead(double fraction, Consumer<DNSNode> refresher) {
+        this.refreshFraction = fraction;
+        this.refresher = refresher;
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are left out of
+     * the returned set. This method does not perform the query itself, it only returns previously
+     * cached results. Negative records are never returned: if the query is known to have no
+     * results, the set is empty (use getNegativeResult to tell this apart from a cache miss).
+     *
+     * This is the lookup of a client of the cache: it is counted as a hit, a negative hit or a
+     * miss, and as an access in the frequency sketch used to admit nodes. Lookups made by the
+     * resolver for its own needs (e.g., nameservers and their addresses) should use peek instead.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        sketch.increment(node);
+        RecordSet results = getShard(node).results.get(node);
+        long now = System.nanoTime();
+        Set<ResourceRecord> validResults = results == null ? Collections.emptySet() : results.toRecords(node, now);
+        if (validResults.isEmpty()) {
+            missCount.increment();
+            return validResults;
+        }
+        touch(node);
+        if (results.getNegativeRecord() != null) {
+            negativeHitCount.increment();
+            return Collections.emptySet();
+        }
+        hitCount.increment();
+        AtomicInteger hits = refreshHits.get(node);
+        if (hits != null)
+            hits.incrementAndGet();
+        return validResults;
+    }
+
+    /** Returns the records cached for a query, like getCachedResults, but without counting the
+     * lookup in the statistics of the cache or in the frequency sketch, for lookups made by the
+     * resolver itself rather than by its clients.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> peek(DNSNode node) {
+        RecordSet results = getShard(node).results.get(node);
+        if (results == null || results.getNegativeRecord() != null)
             return Collections.emptySet();
+        Set<ResourceRecord> validResults = results.toRecords(node, System.nanoTime());
+        if (!validResults.isEmpty())
+            touch(node);
+        return validResults;
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /**
+     * moves a node to the most recently used end, unless another thread is busy with its shard, in which case this
+     * access is simply not recorded rather than waiting for the lock
+     */
+    private void touch(DNSNode node) {
+        Shard shard = getShard(node);
+        if (shard.lock.tryLock()) {
+            try {
+                shard.accessOrder.get(node);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /** Returns the negative record cached for a particular query, if the query is known to have
+     * no results (NXDOMAIN or NODATA).
+     *
+     * @param node DNS query (host name and record type).
+     * @return The negative record of the query, or null if no unexpired negative record is cached.
+     */
+    public ResourceRecord getNegativeResult(DNSNode node) {
+        RecordSet results = getShard(node).results.get(node);
+        if (results == null) return null;
+        ResourceRecord negativeRecord = results.getNegativeRecord();
+        return negativeRecord != null && negativeRecord.isStillValid() ? negativeRecord : null;
+    }
+
+    /** Returns the records of a query that expired, but are still within the stale window, e.g.,
+     * to answer the query when the records can't be resolved again. The records returned expire
+     * STALE_TTL seconds from now. Negative records are never served stale.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of expired resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        RecordSet results = getShard(node).results.get(node);
+        long stale = staleNanos;
+        if (results == null || stale == 0 || results.getNegativeRecord() != null)
+            return Collections.emptySet();
+
+        long now = System.nanoTime();
+        long expirationTime = now + TimeUnit.SECONDS.toNanos(STALE_TTL);
+        Set<ResourceRecord> staleResults = new HashSet<>();
+        for (int i = 0; i < results.size(); i++) {
+            long expiredFor = now - results.getExpirationTime(i);
+            if (expiredFor >= 0 && expiredFor < stale)
+                staleResults.add(results.get(node, i).withExpirationTime(expirationTime));
+        }
+        return staleResults;
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
+     * record, otherwise the existing record is maintained. A negative record replaces all the
+     * records of its node, and is itself replaced by any record that is not negative. If the
+     * cache grows over its limits,
+     * the least recently used nodes are evicted, unless the node of the record has been used less
+     * often than the node that would be evicted in its place, in which case the record's node is
+     * not kept at all.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result
      *               of a DNS query.
@@ -56,41 +309,362 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        DNSNode node = record.getNode();
+        sketch.increment(node);
+        Shard shard = getShard(node);
+        shard.lock.lock();
+        try {
+            RecordSet results = shard.results.get(node);
+            RecordSet newResults = results == null ? RecordSet.of(record) : results.with(record);
+            if (newResults == results)
+                return;
+            shard.put(node, newResults);
+
+            // the node keeps a single entry in the expiry wheel, moved whenever its earliest expiration changes
+            if (results == null || newResults.getEarliestExpirationTime() != results.getEarliestExpirationTime())
+                expiryWheel.schedule(node, newResults.getEarliestExpirationTime() + staleNanos);
+            if (results == null)
+                scheduleRefresh(node, newResults);
+
+            evict(shard, results == null ? node : null);
+        } finally {
+            shard.lock.unlock();
         }
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Replaces all the records of a node at once with freshly resolved ones, e.g., when a node
+     * is refreshed ahead of its expiration. Records of the node that are not in the new set are
+     * dropped, even if they had not expired yet.
+     *
+     * @param node    DNS query (host name and record type) whose records are replaced.
+     * @param records New records of the node, which must not be empty.
+     */
+    public void replaceResults(DNSNode node, Set<ResourceRecord> records) {
+        RecordSet newResults = null;
+        for (ResourceRecord record : records)
+            if (record.isStillValid())
+                newResults = newResults == null ? RecordSet.of(record) : newResults.with(record);
+        if (newResults == null) return;
+
+        Shard shard = getShard(node);
+        shard.lock.lock();
+        try {
+            RecordSet results = shard.results.get(node);
+            shard.put(node, newResults);
+            expiryWheel.schedule(node, newResults.getEarliestExpirationTime() + staleNanos);
+            scheduleRefresh(node, newResults);
+            evict(shard, results == null ? node : null);
+        } finally {
+            shard.lock.unlock();
+        }
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are left out of the
+     * set. Queries are visited in order of host name and type.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (DNSNode node : getSortedNodes()) {
+            Set<ResourceRecord> results = getValidResults(node);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped. Queries
+     * are visited in order of host name and type.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        for (DNSNode node : getSortedNodes())
+            getValidResults(node).forEach(record -> consumer.accept(node, record));
+    }
+
+    /** Writes every record of the cache to a snapshot file. The snapshot is first written to a
+     * temporary file next to it, which then replaces the snapshot file, so that the snapshot file
+     * is complete even if writing is interrupted. Lookups may proceed while the snapshot is
+     * written; records added meanwhile may or may not be included.
+     *
+     * Each node is written as its number of records, host name and record type code, followed by
+     * each record: its kind (address, text or negative), its expiration time in milliseconds since
+     * the epoch, and its address (two longs) or text.
+     *
+     * @param file Path of the snapshot file.
+     * @return Number of records written.
+     * @throws IOException if the snapshot could not be written.
+     */
+    public long saveSnapshot(Path file) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        long count = 0;
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            for (Shard shard : shards) {
+                for (Map.Entry<DNSNode, RecordSet> entry : shard.results.entrySet()) {
+                    RecordSet results = entry.getValue().withoutExpired(nowNanos);
+                    if (results == null) continue;
+
+                    DNSNode node = entry.getKey();
+                    out.writeShort(results.size());
+                    out.writeUTF(node.getHostName());
+                    out.writeShort(node.getType().getCode());
+                    for (int i = 0; i < results.size(); i++) {
+                        ResourceRecord record = results.get(node, i);
+                        out.writeByte(record.isAddress() ? SNAPSHOT_ADDRESS : record.isNegative() ? SNAPSHOT_NEGATIVE : SNAPSHOT_TEXT);
+                        out.writeLong(nowMillis + TimeUnit.NANOSECONDS.toMillis(record.getExpirationTime() - nowNanos));
+                        if (record.isAddress()) {
+                            out.writeLong(record.getAddressHigh());
+                            out.writeLong(record.getAddressLow());
+                        } else {
+                            out.writeUTF(record.getTextResult());
+                        }
+                        count++;
+                    }
+                }
+            }
+            out.writeShort(SNAPSHOT_END);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /** Adds every record of a snapshot file to the cache, except for those that have expired
+     * since the snapshot was written. The records are added as if they had just been obtained
+     * from a DNS server, so the limits of the cache apply to them.
+     *
+     * @param file Path of the snapshot file.
+     * @return Number of records added to the cache.
+     * @throws IOException if the snapshot could not be read, or is not a snapshot file.
+     */
+    public long loadSnapshot(Path file) throws IOException {
+        long count = 0;
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+                throw new IOException("Not a cache snapshot: " + file);
+
+            int size;
+            while ((size = in.readUnsignedShort()) != SNAPSHOT_END) {
+                DNSNode node = new DNSNode(in.readUTF(), RecordType.getByCode(in.readUnsignedShort()));
+                for (int i = 0; i < size; i++) {
+                    byte kind = in.readByte();
+                    long expirationTime = nowNanos + TimeUnit.MILLISECONDS.toNanos(in.readLong() - nowMillis);
+                    ResourceRecord record;
+                    if (kind == SNAPSHOT_ADDRESS)
+                        record = ResourceRecord.ofAddress(node, expirationTime, in.readLong(), in.readLong());
+                    else if (kind == SNAPSHOT_TEXT || kind == SNAPSHOT_NEGATIVE)
+                        record = ResourceRecord.ofText(node, expirationTime, in.readUTF(), kind == SNAPSHOT_NEGATIVE);
+                    else
+                        throw new IOException("Corrupt cache snapshot: " + file);
+
+                    // expired records are skipped by addResult
+                    if (record.isStillValid()) {
+                        addResult(record);
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /** @return Number of calls to getCachedResults that found cached records, other than a negative one. */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** @return Number of calls to getCachedResults that found no cached records. */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /** @return Number of calls to getCachedResults that found the query known to have no results. */
+    public long getNegativeHitCount() {
+        return negativeHitCount.sum();
+    }
+
+    /** @return Number of nodes evicted, or not admitted, because the cache was over its limits. */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /** @return Number of records removed from the cache because they expired (past the stale window, if any). */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
+    /** @return Number of records currently held in the cache, including expired ones not yet removed. */
+    public long getRecordCount() {
+        long count = 0;
+        for (Shard shard : shards)
+            count += shard.recordCount;
+        return count;
+    }
+
+    /** @return Estimated heap used by the records currently held in the cache, in bytes. */
+    public long getByteCount() {
+        long count = 0;
+        for (Shard shard : shards)
+            count += shard.byteCount;
+        return count;
+    }
+
+    /**
+     * returns the records of a node that are still valid, without changing the cache, records that
+     * expired since the last tick of the expiry wheel are left out of the set but remain cached
+     * @param node the node to be looked up
+     * @return a potentially empty set of records
+     */
+    private Set<ResourceRecord> getValidResults(DNSNode node) {
+        RecordSet results = getShard(node).results.get(node);
+        if (results == null)
+            return Collections.emptySet();
+        return results.toRecords(node, System.nanoTime());
+    }
+
+    /**
+     * removes the expired records of a node from the cache, and schedules the node again for the
+     * expiration of its remaining records, called by the expiry wheel
+     * @param node the node whose earliest record expired
+     */
+    private void removeExpired(DNSNode node) {
+        Shard shard = getShard(node);
+        shard.lock.lock();
+        try {
+            RecordSet results = shard.results.get(node);
+            if (results == null)
+                return;
+
+            long stale = staleNanos;
+            RecordSet validResults = results.withoutExpired(System.nanoTime() - stale);
+            expiredCount.add(results.size() - (validResults == null ? 0 : validResults.size()));
+            if (validResults == null) {
+                shard.remove(node);
+            } else {
+                // the expired record may also have been replaced by one expiring later, in which case
+                // nothing is removed but the node must still be scheduled for its remaining records
+                if (validResults != results)
+                    shard.put(node, validResults);
+                expiryWheel.schedule(node, validResults.getEarliestExpirationTime() + stale);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * schedules a node that was just added or replaced to be refreshed once the configured fraction
+     * of its TTL has passed, if refresh-ahead is enabled and the node can be queried (A or AAAA)
+     * @param node the node to be refreshed
+     * @param results the records of the node
+     */
+    private void scheduleRefresh(DNSNode node, RecordSet results) {
+        if (refresher == null || results.getNegativeRecord() != null ||
+                (node.getType() != RecordType.A && node.getType() != RecordType.AAAA))
+            return;
+        long now = System.nanoTime();
+        long lifetime = results.getEarliestExpirationTime() - now;
+        refreshHits.put(node, new AtomicInteger());
+        refreshWheel.schedule(node, now + (long) (lifetime * refreshFraction));
+    }
+
+    /**
+     * hands a node to the refresher if it is still cached and was found in the cache often enough
+     * since it was scheduled, called by the refresh wheel
+     * @param node the node that reached the refresh point of its TTL
+     */
+    private void refreshIfPopular(DNSNode node) {
+        AtomicInteger hits = refreshHits.remove(node);
+        if (hits == null || hits.get() < REFRESH_MIN_HITS)
+            return;
+        RecordSet results = getShard(node).results.get(node);
+        if (results == null || results.getNegativeRecord() != null ||
+                results.getEarliestExpirationTime() - System.nanoTime() <= 0)
+            return;
+        refresher.accept(node);
+    }
+
+    /**
+     * evicts the least recently used nodes of a shard until the shard is within its limits, must be
+     * called with the shard locked
+     * @param shard the shard to be evicted from
+     * @param candidate a node that was just added to the shard, which is evicted instead of the least
+     *                  recently used node if it is less frequently used, or null
+     */
+    private void evict(Shard shard, DNSNode candidate) {
+        while (shard.recordCount > maxRecordsPerShard || shard.byteCount > maxBytesPerShard) {
+            Iterator<DNSNode> iterator = shard.accessOrder.keySet().iterator();
+            if (!iterator.hasNext())
+                return;
+            DNSNode victim = iterator.next();
+            if (victim.equals(candidate) && iterator.hasNext())
+                victim = iterator.next();
+            if (candidate != null && shard.results.containsKey(candidate) &&
+                    sketch.frequency(candidate) < sketch.frequency(victim))
+                victim = candidate;
+            shard.remove(victim);
+            expiryWheel.cancel(victim);
+            refreshWheel.cancel(victim);
+            refreshHits.remove(victim);
+            evictionCount.increment();
+        }
+    }
+
+    private Shard getShard(DNSNode node) {
+        // spread the hash so that shards are selected with the high bits as well
+        int hash = node.hashCode();
+        return shards[((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % SHARD_COUNT];
+    }
+
+    private List<DNSNode> getSortedNodes() {
+        List<DNSNode> nodes = new ArrayList<>();
+        for (Shard shard : shards)
+            nodes.addAll(shard.results.keySet());
+        Collections.sort(nodes);
+        return nodes;
+    }
+
+    /**
+     * @return the approximate heap used by a node and its records, in bytes
+     */
+    private static long estimateSize(DNSNode node, RecordSet results) {
+        // the host name of the records is the interned name of the node, so it is only counted once
+        return NODE_OVERHEAD + 2L * node.getHostName().length() + results.estimateSize();
+    }
+
+    /** A shard of the cache. Lookups read the results map without locking, while every change to
+     * the shard is made with its lock held, so that the results, the access order and the counts
+     * always agree with each other.
+     */
+    private static class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<DNSNode, RecordSet> results = new ConcurrentHashMap<>();
+        // nodes from least to most recently used, and the estimated size of each
+        private final LinkedHashMap<DNSNode, Long> accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+        private volatile long recordCount;
+        private volatile long byteCount;
+
+        private void put(DNSNode node, RecordSet newResults) {
+            RecordSet oldResults = results.put(node, newResults);
+            Long oldSize = accessOrder.put(node, estimateSize(node, newResults));
+            recordCount += newResults.size() - (oldResults == null ? 0 : oldResults.size());
+            byteCount += accessOrder.get(node) - (oldSize == null ? 0 : oldSize);
+        }
+
+        private void remove(DNSNode node) {
+            RecordSet oldResults = results.remove(node);
+            Long oldSize = accessOrder.remove(node);
+            if (oldResults != null)
+                recordCount -= oldResults.size();
+            if (oldSize != null)
+                byteCount -= oldSize;
         }
     }
 
@@ -1,15 +1,27 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.ByteArrayOutputStream;
-import java.io.Console;
-import java.io.IOException;
+import javax.management.JMException;
+import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DNSLookupService {
 
-    private static final int DEFAULT_DNS_PORT = 53;
     private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_QUERY_ATTEMPTS = 3;
+    // no other server of a zone is tried once this long has passed since the first was queried
+    private static final long MAX_QUERY_TIME_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int MAX_CONCURRENT_NAMESERVER_LOOKUPS = 3;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 100;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
+    // client response timeout recommended by RFC 8767
+    private static final long DEFAULT_STALE_ANSWER_TIMEOUT = 1800;
+    // servers listed by the stats command, busiest first
+    private static final int MAX_STATS_SERVERS = 20;
 
     // Record types
     private static final int AAAA = 28;
@@ -19,43 +31,188 @@ public class DNSLookupService {
     private static final int MX = 15;
     private static final int OTHER = 0;
 
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static volatile InetAddress rootServer;
+    private static volatile boolean verboseTracing = false;
+    // how long an ANY_ADDR lookup waits for the second address family once the first has results, or -1 to
+    // always wait for both
+    private static volatile long addressGraceMillis = -1;
+    // how long a lookup may take before expired records are served instead, if there are any, or 0 to only serve them
+    // when the lookup fails
+    private static volatile long staleAnswerTimeoutMillis = DEFAULT_STALE_ANSWER_TIMEOUT;
 
     private static DNSCache cache = DNSCache.getInstance();
+    private static ServerStatistics serverStatistics = new ServerStatistics();
+    private static ResolverMetrics metrics = new ResolverMetrics(cache);
 
-    private static Random random = new Random();
+    // nodes being refreshed ahead of their expiration
+    private static Set<DNSNode> refreshingNodes = ConcurrentHashMap.newKeySet();
+
+    // lookups in progress, keyed by node and indirection level, shared by everyone asking for the same node
+    private static Map<Map.Entry<DNSNode, Integer>, CompletableFuture<Set<ResourceRecord>>> inFlightLookups = new ConcurrentHashMap<>();
+
+    // resolution work triggered by responses runs on these threads, never on the engine's receiver thread
+    private static ExecutorService executor;
+    private static QueryEngine engine;
+
+    // how the lookups of a bulk run are executed: "async" completes them through callbacks on the resolver threads,
+    // "platform" and "virtual" run each lookup as a blocking task on its own platform or virtual thread
+    private static String lookupMode = "async";
+    private static ExecutorService lookupExecutor;
+
+    // where the cache is saved periodically and on exit, and restored from on startup, if anywhere
+    private static Path snapshotFile;
+    private static ScheduledExecutorService snapshotter;
 
     /**
      * Main function, called when program is first invoked.
      *
      * @param args list of arguments specified in the command line.
      */
-    public static void main(String[] args) throws UnknownHostException {
+    public static void main(String[] args) {
+
+        // optional flags after the root server select the non-interactive bulk lookup mode
+        String batchFile = null;
+        int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        long maxCachedRecords = DNSCache.DEFAULT_MAX_RECORDS;
+        long maxCachedBytes = DNSCache.DEFAULT_MAX_BYTES;
+        long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        int ednsPayloadSize = QueryEngine.DEFAULT_EDNS_PAYLOAD_SIZE;
+        double refreshFraction = 0;
+        long staleWindow = 0;
+        boolean validArgs = args.length % 2 == 1;
+        for (int i = 1; validArgs && i < args.length; i += 2) {
+            if (args[i].equals("-f"))
+                batchFile = args[i + 1];
+            else if (args[i].equals("-c"))
+                try {
+                    maxInFlight = Integer.parseInt(args[i + 1]);
+                    validArgs = maxInFlight > 0;
+                } catch (NumberFormatException ex) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-e"))
+                try {
+                    ednsPayloadSize = Integer.parseInt(args[i + 1]);
+                    validArgs = ednsPayloadSize == 0 || (ednsPayloadSize >= 512 && ednsPayloadSize <= 65535);
+                } catch (NumberFormatException ex) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-g"))
+                try {
+                    addressGraceMillis = Long.parseLong(args[i + 1]);
+                    validArgs = addressGraceMillis >= 0;
+                } catch (NumberFormatException ex) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-x") || args[i].equals("-w"))
+                try {
+                    long value = Long.parseLong(args[i + 1]);
+                    if (args[i].equals("-x"))
+                        staleWindow = value;
+                    else
+                        staleAnswerTimeoutMillis = value;
+                    validArgs = value >= 0;
+                } catch (NumberFormatException ex) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-p"))
+                try {
+                    refreshFraction = Double.parseDouble(args[i + 1]);
+                    validArgs = refreshFraction > 0 && refreshFraction < 1;
+                } catch (NumberFormatException ex) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-t")) {
+                lookupMode = args[i + 1].toLowerCase();
+                validArgs = lookupMode.equals("async") || lookupMode.equals("platform") || lookupMode.equals("virtual");
+            } else if (args[i].equals("-s"))
+                snapshotFile = Paths.get(args[i + 1]);
+            else if (args[i].equals("-i"))
+                try {
+                    snapshotInterval = Long.parseLong(args[i + 1]);
+                    validArgs = snapshotInterval > 0;
+                } catch (NumberFormatException ex) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-r") || args[i].equals("-b"))
+                try {
+                    long limit = Long.parseLong(args[i + 1]);
+                    if (args[i].equals("-r"))
+                        maxCachedRecords = limit;
+                    else
+                        maxCachedBytes = limit;
+                    validArgs = limit > 0;
+                } catch (NumberFormatException ex) {
+                    validArgs = false;
+                }
+            else
+                validArgs = false;
+        }
 
-        if (args.length != 1) {
+        if (!validArgs) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-f file] [-c maxInFlight] [-r maxRecords] [-b maxBytes]");
+            System.err.println("\t\t[-s snapshotFile] [-i snapshotInterval] [-e ednsPayloadSize] [-g graceMillis]");
+            System.err.println("\t\t[-t async|platform|virtual] [-p refreshFraction]");
+            System.err.println("\t\t[-x staleWindow] [-w staleAnswerTimeout]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("With -f, every name in file (or standard input if file is -) is looked up and the program exits,");
+            System.err.println("with at most maxInFlight (default " + DEFAULT_MAX_IN_FLIGHT + ") lookups in progress at any time.");
+            System.err.println("The cache holds at most maxRecords (default " + DNSCache.DEFAULT_MAX_RECORDS + ") records, using");
+            System.err.println("about maxBytes (default " + DNSCache.DEFAULT_MAX_BYTES + ") bytes of memory.");
+            System.err.println("With -s, the cache is restored from snapshotFile on startup, and saved to it on exit and every");
+            System.err.println("snapshotInterval (default " + DEFAULT_SNAPSHOT_INTERVAL + ") seconds.");
+            System.err.println("Servers may send UDP responses of up to ednsPayloadSize (default " + QueryEngine.DEFAULT_EDNS_PAYLOAD_SIZE);
+            System.err.println("bytes, 0 to disable EDNS), larger responses are fetched over TCP.");
+            System.err.println("With -g, an ANY_ADDR lookup returns the addresses of one family once they are found and the");
+            System.err.println("other family is still missing graceMillis later, instead of always waiting for both.");
+            System.err.println("With -t, each lookup of a bulk run (with -f or the lookup-file command) is a blocking task on a");
+            System.err.println("platform thread (out of a pool of maxInFlight threads, shared by every lookup-file command) or on");
+            System.err.println("a virtual thread of its own, instead of completing asynchronously.");
+            System.err.println("With -p, names found in the cache often are resolved again in the background once");
+            System.err.println("refreshFraction (between 0 and 1) of their TTL has passed, before they expire.");
+            System.err.println("With -x, records are kept staleWindow seconds after they expire, and served if they can't be");
+            System.err.println("resolved again, or if resolving them takes longer than staleAnswerTimeout (default");
+            System.err.println(DEFAULT_STALE_ANSWER_TIMEOUT + ", 0 to only serve them on failure) milliseconds.");
             System.exit(1);
         }
 
+        cache.setLimits(maxCachedRecords, maxCachedBytes);
+        cache.setStaleWindow(staleWindow);
+
         try {
             rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            // in bulk mode standard output only carries results
+            (batchFile == null ? System.out : System.err).println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
         }
 
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+            start(rootServer, ednsPayloadSize, QueryEngine.DEFAULT_DNS_PORT);
+        } catch (IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
+        if (refreshFraction > 0)
+            cache.setRefreshAhead(refreshFraction, node -> executor.execute(() -> refresh(node)));
+        // restored once the refresher is installed, so that restored nodes are scheduled to be refreshed as well
+        if (snapshotFile != null)
+            startSnapshots(snapshotInterval);
+        // used by bulk runs, both with -f and with the lookup-file command
+        lookupExecutor = createLookupExecutor(maxInFlight);
+
+        if (batchFile != null) {
+            try (BufferedReader reader = batchFile.equals("-") ?
+                    new BufferedReader(new InputStreamReader(System.in)) : new BufferedReader(new FileReader(batchFile))) {
+                findAndPrintResults(reader, maxInFlight);
+            } catch (IOException ex) {
+                System.err.println("Could not read " + batchFile + " (" + ex.getMessage() + ").");
+            }
+            shutdown();
+            return;
+        }
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -125,7 +282,7 @@ public class DNSLookupService {
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, ANY_ADDR, NS, MX, CNAME");
                         continue;
                     }
                 else {
@@ -133,34 +290,227 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("lookup-file") ||
+                    commandArgs[0].equalsIgnoreCase("lf")) {
+                // LOOKUP-FILE: Find and print all results for every name in a file.
+                int fileMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+                if (commandArgs.length == 3)
+                    try {
+                        fileMaxInFlight = Integer.parseInt(commandArgs[2]);
+                    } catch (NumberFormatException ex) {
+                        fileMaxInFlight = 0;
+                    }
+                if (commandArgs.length < 2 || commandArgs.length > 3 || fileMaxInFlight <= 0) {
+                    System.err.println("Invalid call. Format:\n\tlookup-file path [maxInFlight]");
+                    continue;
+                }
+                try (BufferedReader reader = new BufferedReader(new FileReader(commandArgs[1]))) {
+                    findAndPrintResults(reader, fileMaxInFlight);
+                } catch (IOException ex) {
+                    System.err.println("Could not read " + commandArgs[1] + " (" + ex.getMessage() + ").");
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print the metrics of lookups, upstream queries and the cache
+                printStats();
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tlookup-file path [maxInFlight]");
                 System.err.println("\ttrace on|off");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\tstats");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        shutdown();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * starts the resolver threads and the query engine, after which getResults may be called, e.g., by the load
+     * generator, which resolves names served by local test servers
+     * @param root the root server lookups start from
+     * @param ednsPayloadSize largest UDP response advertised to servers, in bytes, or 0 to send queries without EDNS
+     * @param port port every server listens on, 53 for real servers
+     * @throws IOException if the query engine could not open its channel
+     */
+    static void start(InetAddress root, int ednsPayloadSize, int port) throws IOException {
+        rootServer = root;
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "dns-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        engine = new QueryEngine(executor, serverStatistics, metrics, ednsPayloadSize, port);
+        engine.setListener((id, node, server) -> printQueryTrace(id, node.getHostName(), node.getType(), server));
+        try {
+            metrics.register();
+        } catch (JMException ex) {
+            System.err.println("Could not register the metrics with JMX (" + ex.getMessage() + ").");
+        }
+    }
+
+    /**
+     * closes the query engine and stops the resolver threads, saving the cache one last time if snapshots are enabled
+     */
+    static void shutdown() {
+        try {
+            engine.close();
+        } catch (IOException ex) {
+            // nothing left to do with the channel
+        }
+        executor.shutdown();
+        if (lookupExecutor != null)
+            lookupExecutor.shutdown();
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * creates the executor that runs the lookups of a bulk run, according to the lookup mode
+     * @param maxInFlight maximum number of lookups in progress at any given time
+     * @return an executor with a thread for each lookup in progress, or null in async mode
+     */
+    private static ExecutorService createLookupExecutor(int maxInFlight) {
+        if (lookupMode.equals("virtual")) {
+            // virtual threads are only available from Java 21, and this code must also build on older versions
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                System.err.println("Virtual threads are not supported by this JVM, using platform threads instead.");
+                lookupMode = "platform";
+            }
+        }
+        if (lookupMode.equals("platform")) {
+            return Executors.newFixedThreadPool(maxInFlight, runnable -> {
+                Thread thread = new Thread(runnable, "dns-lookup");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return null;
+    }
+
+    /**
+     * restores the cache from the snapshot file, if it exists, and starts saving the cache to it periodically
+     * @param interval time between two snapshots, in seconds
+     */
+    private static void startSnapshots(long interval) {
+        if (snapshotFile.toFile().exists()) {
+            try {
+                long count = cache.loadSnapshot(snapshotFile);
+                System.err.println("Restored " + count + " cached records from " + snapshotFile + ".");
+            } catch (IOException ex) {
+                System.err.println("Could not restore the cache from " + snapshotFile + " (" + ex.getMessage() + ").");
+            }
+        }
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(DNSLookupService::saveSnapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * saves the cache to the snapshot file
+     */
+    private static synchronized void saveSnapshot() {
+        try {
+            cache.saveSnapshot(snapshotFile);
+        } catch (IOException ex) {
+            System.err.println("Could not save the cache to " + snapshotFile + " (" + ex.getMessage() + ").");
+        }
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
      * @param hostName Fully qualified domain name of the host being searched.
      * @param type     Record type for search.
      */
-    private static void findAndPrintResults(String hostName, RecordType type) throws UnknownHostException {
+    private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        printResults(node, lookup(node).join());
+    }
+
+    /**
+     * Finds all results for every host name read from a source, one "hostName [type]" per line, and
+     * prints them on the standard output as each lookup completes. Lines are read only as lookups
+     * finish, so that no more than maxInFlight lookups are in progress and the input is never held
+     * in memory as a whole.
+     *
+     * @param reader      Source of host names, blank lines and anything after '#' are ignored.
+     * @param maxInFlight Maximum number of lookups in progress at any given time.
+     */
+    private static void findAndPrintResults(BufferedReader reader, int maxInFlight) throws IOException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.split("#", 2)[0].trim();
+            if (line.isEmpty()) continue;
+
+            String[] fields = line.split("\\s+");
+            RecordType type = RecordType.A;
+            if (fields.length > 1)
+                try {
+                    type = RecordType.valueOf(fields[1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid query type for " + fields[0] + ": " + fields[1]);
+                    continue;
+                }
+
+            DNSNode node = new DNSNode(fields[0], type);
+            inFlight.acquireUninterruptibly();
+            if (lookupExecutor == null) {
+                lookup(node).whenComplete((results, ex) -> {
+                    try {
+                        printResults(node, results != null ? results : Collections.emptySet());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                continue;
+            }
+
+            // the lookup thread simply waits for the result, as a client written in a blocking style would
+            lookupExecutor.execute(() -> {
+                try {
+                    printResults(node, lookup(node).join());
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        // wait for the last lookups to complete
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+
+    /**
+     * Finds all the results for a node requested by a user (rather than needed by another lookup), recording the
+     * latency and outcome of the lookup in the metrics.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A future completed with the set of resource records corresponding to the query, like getResults.
+     */
+    static CompletableFuture<Set<ResourceRecord>> lookup(DNSNode node) {
+        long start = System.nanoTime();
+        return getResults(node, 0).thenApply(results -> {
+            metrics.recordLookup(System.nanoTime() - start, results.isEmpty());
+            return results;
+        });
     }
 
     /**
@@ -172,278 +522,546 @@ public class DNSLookupService {
      *                         regarding CNAME results should increment this value by 1. Once this value
      *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
      *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @return A future completed with the set of resource records corresponding to the specific query
+     *         requested. The future never completes exceptionally, failed lookups produce an empty set.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel)  {
+    static CompletableFuture<Set<ResourceRecord>> getResults(DNSNode node, int indirectionLevel)  {
+        return getResults(node, indirectionLevel, null, null);
+    }
+
+    /**
+     * Finds all the result for a specific node, like getResults, starting from given servers if the node has to be
+     * looked up.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Number of CNAME redirections followed so far to reach this node.
+     * @param servers          Servers the lookup starts from if it has to query any, or null to start from the
+     *                         closest servers found in the cache.
+     * @param zoneServers      Completed with the servers that answered the query for the node, once the lookup is
+     *                         past the referrals to them, or null. Left alone if no server answered it.
+     * @return A future completed with the set of resource records corresponding to the query, like getResults.
+     */
+    private static CompletableFuture<Set<ResourceRecord>> getResults(DNSNode node, int indirectionLevel,
+                                                                     List<InetAddress> servers,
+                                                                     CompletableFuture<List<InetAddress>> zoneServers) {
         if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        }
+        if (node.getType() == RecordType.ANY_ADDR) {
+            return getAddressResults(node, indirectionLevel);
         }
-        // TODO To be completed by the student
 
-        // if the node is cached, return the cached results without issuing a lookup
-        if (!cache.getCachedResults(node).isEmpty()){
-            return cache.getCachedResults(node);
+        // if the node is cached, return the cached results without issuing a lookup. Only the lookups of clients are
+        // counted in the cache statistics, not those the resolver makes for CNAME targets and nameservers
+        Set<ResourceRecord> cachedResults = indirectionLevel == 0 ? cache.getCachedResults(node) : cache.peek(node);
+        if (!cachedResults.isEmpty()){
+            return CompletableFuture.completedFuture(cachedResults);
         }
 
-        // keep track of the node we initially queried, to be used in the situation where we resolve CNAMEs
-        DNSNode initialNode = node;
+        // if the node is known not to have any results, don't look for them again until the negative record expires
+        if (cache.getNegativeResult(node) != null){
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        }
 
-        // query the root server and name servers until we reach an authoritative server, then cache the answer from the
-        // authoritative server, also caching all additional information along the way
-        try {
-            retrieveResultsFromServer(node, initialNode, rootServer);
-        } catch (UnknownHostException e) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                    node.getType(), -1, "0.0.0.0");
-            System.out.println("here");
+        // if the same node is already being looked up, share the result of that lookup instead of starting another
+        // one. Lookups only ever wait for lookups at a higher indirection level, so keying them by level as well
+        // ensures a CNAME or nameserver loop can never have a lookup wait for itself
+        CompletableFuture<Set<ResourceRecord>> lookup = new CompletableFuture<>();
+        Map.Entry<DNSNode, Integer> key = Map.entry(node, indirectionLevel);
+        CompletableFuture<Set<ResourceRecord>> inFlightLookup = inFlightLookups.putIfAbsent(key, lookup);
+        if (inFlightLookup != null){
+            return withStaleFallback(node, inFlightLookup);
         }
 
-        // after we have retrieve the results from the root servers->nameservers->authoritative servers, we query the
-        // cache for node corresponding to the one given as input, this is a mapping between hostName and IP
-        return cache.getCachedResults(node);
+        // query the closest known server and name servers below it until we reach an authoritative server, caching
+        // all the information along the way, a timeout or error anywhere along the way results in an empty set.
+        // Without an answer, whatever the walk cached for the node itself is returned, e.g., the NS records of a
+        // zone learned from the referral to it
+        retrieveResultsFromServer(node, servers != null ? servers : findClosestServers(node), indirectionLevel, zoneServers)
+                .exceptionally(ex -> Collections.emptySet())
+                .thenAccept(results -> {
+                    inFlightLookups.remove(key, lookup);
+                    lookup.complete(results.isEmpty() ? cache.peek(node) : results);
+                });
+        return withStaleFallback(node, lookup);
     }
 
-
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Falls back to the expired records of a node (RFC 8767), if any are still cached, when its lookup fails (i.e.,
+     * completes without results, although the node is not known to have none) or takes longer than
+     * staleAnswerTimeoutMillis. In the latter case the lookup carries on in the background, and its results replace
+     * the expired ones in the cache once it completes.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param node   Host name and record type being looked up.
+     * @param lookup Lookup of the node.
+     * @return A future completed with the results of the lookup, or with the expired records of the node.
      */
-    private static void retrieveResultsFromServer(DNSNode node, DNSNode initialNode, InetAddress server) throws UnknownHostException {
-        // TODO To be completed by the student
-
-        // get T/F value for IPv6
-        boolean isIPv6 = (node.getType().getCode() == AAAA);
+    private static CompletableFuture<Set<ResourceRecord>> withStaleFallback(DNSNode node,
+                                                                         CompletableFuture<Set<ResourceRecord>> lookup) {
+        if (cache.getStaleResults(node).isEmpty())
+            return lookup;
+
+        CompletableFuture<Set<ResourceRecord>> result = new CompletableFuture<>();
+        lookup.thenAccept(results -> {
+            if (results.isEmpty() && cache.getNegativeResult(node) == null)
+                result.complete(cache.getStaleResults(node));
+            else
+                result.complete(results);
+        });
+
+        long timeout = staleAnswerTimeoutMillis;
+        if (timeout > 0) {
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS, executor).execute(() -> {
+                Set<ResourceRecord> staleResults = cache.getStaleResults(node);
+                if (!staleResults.isEmpty())
+                    result.complete(staleResults);
+            });
+        }
+        return result;
+    }
 
-        // randomly generate 16-bit transaction id
-        byte[] id = new byte[2];
-        random.nextBytes(id);
+    /**
+     * Resolves a cached node again, without looking at its cached records, and swaps the fresh records in once they
+     * are found. Lookups of the node keep being answered from the cache in the meantime. If the node can't be
+     * resolved, its cached records are kept until they expire.
+     *
+     * @param node Host name and record type to be refreshed.
+     */
+    private static void refresh(DNSNode node) {
+        if (!refreshingNodes.add(node)) return;
+        retrieveResultsFromServer(node, findClosestServers(node), 0, null)
+                .exceptionally(ex -> Collections.emptySet())
+                .thenAccept(results -> {
+                    refreshingNodes.remove(node);
+                    if (!results.isEmpty())
+                        cache.replaceResults(node, results);
+                });
+    }
 
-        // allocate buffer for response
-        byte[] buf = new byte[512];
+    /**
+     * Finds both the IPv4 and IPv6 addresses of a host name. The delegation down to the zone of the name is only
+     * walked once: unless the servers of the zone (those of the name or of its parent) or the AAAA records are already
+     * cached, the A lookup walks it, and the AAAA query is sent to the servers that answered the A query as soon as
+     * they did. Otherwise the A and AAAA lookups run at the same time, each like any other lookup. Either way, anything
+     * one of them needs that the other is already looking up (e.g., the address of a nameserver without glue) is only
+     * looked up once.
+     *
+     * @param node             Host name to be searched, with the ANY_ADDR type.
+     * @param indirectionLevel Number of CNAME redirections followed so far to reach this node.
+     * @return A future completed with the A and AAAA records of the host name once both lookups complete or, if
+     *         addressGraceMillis is set, once one of them has results and the other is still in progress after
+     *         that grace period, in which case only the results found so far are included.
+     */
+    private static CompletableFuture<Set<ResourceRecord>> getAddressResults(DNSNode node, int indirectionLevel) {
+        DNSNode ipv4Node = new DNSNode(node.getName(), RecordType.A);
+        DNSNode ipv6Node = new DNSNode(node.getName(), RecordType.AAAA);
+        CompletableFuture<Set<ResourceRecord>> ipv4;
+        CompletableFuture<Set<ResourceRecord>> ipv6;
+        if (hasZoneServers(node.getName()) || !cache.peek(ipv6Node).isEmpty() || cache.getNegativeResult(ipv6Node) != null) {
+            ipv4 = getResults(ipv4Node, indirectionLevel);
+            ipv6 = getResults(ipv6Node, indirectionLevel);
+        } else {
+            // if the A lookup queries no server (e.g., it is answered from the cache) or fails, the AAAA lookup starts
+            // from the closest servers cached once the A lookup is over
+            CompletableFuture<List<InetAddress>> zoneServers = new CompletableFuture<>();
+            ipv4 = getResults(ipv4Node, indirectionLevel, null, zoneServers);
+            ipv4.whenComplete((results, ex) -> zoneServers.complete(null));
+            ipv6 = zoneServers.thenCompose(servers -> getResults(ipv6Node, indirectionLevel, servers, null));
+        }
+        CompletableFuture<Set<ResourceRecord>> both = ipv4.thenCombine(ipv6, DNSLookupService::union);
+
+        long grace = addressGraceMillis;
+        if (grace < 0) return both;
+
+        // the first family with results starts the grace period, at the end of which whatever was found is returned
+        CompletableFuture<Set<ResourceRecord>> result = new CompletableFuture<>();
+        both.thenAccept(result::complete);
+        Executor afterGrace = CompletableFuture.delayedExecutor(grace, TimeUnit.MILLISECONDS, executor);
+        for (CompletableFuture<Set<ResourceRecord>> family : Arrays.asList(ipv4, ipv6)) {
+            family.thenAccept(results -> {
+                if (!results.isEmpty() && !result.isDone())
+                    afterGrace.execute(() -> result.complete(union(ipv4.getNow(Collections.emptySet()),
+                            ipv6.getNow(Collections.emptySet()))));
+            });
+        }
+        return result;
+    }
 
-        // create a packet to hold the response
-        DatagramPacket responsePacket = new DatagramPacket(buf, buf.length);
-        byte[] responseBytes;
+    /**
+     * @return a set with the records of both sets
+     */
+    private static Set<ResourceRecord> union(Set<ResourceRecord> first, Set<ResourceRecord> second) {
+        if (second.isEmpty()) return first;
+        if (first.isEmpty()) return second;
+        Set<ResourceRecord> union = new HashSet<>(first);
+        union.addAll(second);
+        return union;
+    }
 
-        // send out the query
-        sendQuery(socket, id, node, server);
+    /**
+     * Finds the servers closest to a node in the DNS hierarchy whose address is known. The zones enclosing the
+     * host name are searched from the deepest (the host name itself) up to the top-level domain, and the first
+     * zone with cached nameservers whose address is also cached is used, so that the servers above that zone
+     * don't need to be queried again.
+     *
+     * @param node Host name and record type to be used for the query.
+     * @return The addresses of the nameservers for the closest enclosing zone, or the root server if none is cached.
+     */
+    private static List<InetAddress> findClosestServers(DNSNode node) {
+        DomainName zone = node.getName();
+        while (zone != DomainName.ROOT) {
+            List<InetAddress> addresses = findCachedServers(zone);
+            if (!addresses.isEmpty()) return addresses;
+
+            // move up to the parent zone, e.g., from "www.google.com" to "google.com"
+            zone = zone.getParent();
+        }
+        return Collections.singletonList(rootServer);
+    }
 
-        // print the query
-        printQueryTrace(id, node.getHostName(), isIPv6, server);
+    /**
+     * @param zone Name of a zone.
+     * @return The cached addresses of the cached nameservers of the zone, empty if there are none.
+     */
+    private static List<InetAddress> findCachedServers(DomainName zone) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord nameserver : cache.peek(new DNSNode(zone, RecordType.NS))) {
+            for (ResourceRecord cached : cache.peek(new DNSNode(nameserver.getTextResult(), RecordType.A))) {
+                InetAddress address = toInetAddress(cached);
+                if (address != null) addresses.add(address);
+            }
+        }
+        return addresses;
+    }
 
-        // get the response
-        responseBytes = getResponse(socket, responsePacket, id);
+    /**
+     * @param name A host name.
+     * @return true if the servers of the zone the name is most likely in, i.e., the zone of the name itself or of its
+     *         parent, are cached, so that looking up the name doesn't need any referral.
+     */
+    private static boolean hasZoneServers(DomainName name) {
+        if (name == DomainName.ROOT) return true;
+        return !findCachedServers(name).isEmpty() || (name.getParent() != DomainName.ROOT && !findCachedServers(name.getParent()).isEmpty());
+    }
 
-        // if the response is null then something went wrong, returning null will cascade down and printErrorResponse
-        // method will be called
-        if (responseBytes == null){
-            return;
-        }
 
-        // parse the response
-        Response response = new Response(responseBytes);
-        int responseID = response.getID();                                             // transaction ID
-        boolean responseAuth = response.getAuth();                                     // is this server authoritative? (T/F)
-        int responseRcode = response.getRcode();
-        ArrayList<ResourceRecord> answers = response.getAnswers();                     // answer section
-        ArrayList<ResourceRecord> nameservers = response.getServers();                 // nameserver section
-        ArrayList<ResourceRecord> additionalInformations = response.getAdditionals();  // additional information section
-
-        // check for errors
-        switch (responseRcode) {
-            case Response.RCODE_NAME_ERROR:
-            case Response.RCODE_REFUSED_ERROR:
-            case Response.RCODE_SERVER_ERROR:
-                return;
-        }
+    /**
+     * Retrieves DNS results from one of a set of equivalent DNS servers (e.g., the nameservers of a zone). Queries
+     * are sent in iterative mode, and the query is repeated with new servers if the provided ones are
+     * non-authoritative. Results are stored in the cache.
+     *
+     * @param node             Host name and record type to be used for the query.
+     * @param servers          Addresses of the servers that may be used for the query.
+     * @param indirectionLevel Number of CNAME redirections followed so far to reach this node.
+     * @param zoneServers      Completed with the servers that answered the query, rather than referring it to other
+     *                         servers, or null.
+     * @return A future completed with the results for the node once an authoritative answer is found.
+     */
+    private static CompletableFuture<Set<ResourceRecord>> retrieveResultsFromServer(DNSNode node, List<InetAddress> servers,
+                                                                                   int indirectionLevel,
+                                                                                   CompletableFuture<List<InetAddress>> zoneServers) {
+        long deadline = System.nanoTime() + MAX_QUERY_TIME_NANOS;
+        return queryServers(node, serverStatistics.sortByRtt(servers), 0, deadline).thenCompose(response -> {
+            // check for errors, a name error is cached for as long as the SOA record of the zone allows (if any)
+            switch (response.getRcode()) {
+                case Response.RCODE_NAME_ERROR:
+                    if (zoneServers != null) zoneServers.complete(servers);
+                    cacheNegativeResult(node, response, true);
+                    return CompletableFuture.completedFuture(Collections.<ResourceRecord>emptySet());
+                case Response.RCODE_REFUSED_ERROR:
+                case Response.RCODE_SERVER_ERROR:
+                    return CompletableFuture.completedFuture(Collections.<ResourceRecord>emptySet());
+            }
 
-        // print the response
-        printResponseTrace(responseID, responseAuth, answers, nameservers, additionalInformations);
+            // print the response
+            printResponseTrace(response);
 
-        // cache the answer section of the response
-        for (ResourceRecord answer: answers){
-            cache.addResult(answer);
-        }
-        // cache the nameserver section of the response
-        for (ResourceRecord nameserver: nameservers){
-            cache.addResult(nameserver);
-        }
-        // cache the additional information section of the response
-        for (ResourceRecord additionalInformation: additionalInformations){
-            cache.addResult(additionalInformation);
-        }
+            ArrayList<ResourceRecord> answers = response.getAnswers();        // answer section
+            ArrayList<ResourceRecord> nameservers = response.getServers();    // nameserver section
+            List<ResourceRecord> glue = findGlue(response, nameservers);      // addresses of the nameservers
 
-        // if the answer section is empty, then the server that we queried is not an authoritative server for the
-        // hostName, so we send a query to one of the nameservers the current server included in its response, we
-        // arbitrarily select the first nameserver in the nameserver section to query
-        if (answers.isEmpty() && !nameservers.isEmpty()){
-            InetAddress nextServer = InetAddress.getByName(nameservers.get(0).getTextResult());
-            retrieveResultsFromServer(node, initialNode, nextServer); // recursive call
-        }
+            // cache the answer and nameserver sections of the response, and the part of the additional information
+            // section that is about the nameservers, other additional records are not decoded at all
+            for (ResourceRecord answer: answers){
+                cache.addResult(answer);
+            }
+            for (ResourceRecord nameserver: nameservers){
+                cache.addResult(nameserver);
+            }
+            for (ResourceRecord glueRecord: glue){
+                cache.addResult(glueRecord);
+            }
 
-        // if the answer section is not empty, we have a mapping from our hostname to an IP or we have a mapping from
-        // our hostname to a CNAME, in the latter case we need to follow the CNAME as the new hostname
-        if (!answers.isEmpty()){
-            if (!node.equals(initialNode)){
-                // when the node we are querying does not match our initial node, we know that we are querying with a
-                // CNAME node, for each result we get from a CNAME node, create a resource record mapping the initial
-                // node's hostname to the current node's resource record.
-                for (ResourceRecord answer: answers) {
-                    ResourceRecord augmentedResourceRecord = answer;
-                    augmentedResourceRecord.changeHostName(initialNode.getHostName());
-                    cache.addResult(augmentedResourceRecord);
+            // if the answer section is empty, then the server that we queried is not an authoritative server for the
+            // hostName, so we send a query to one of the nameservers the current server included in its response
+            if (answers.isEmpty()){
+                // no referral either, the name exists but has no records of this type
+                if (cacheNegativeResult(node, response, false)) {
+                    if (zoneServers != null) zoneServers.complete(servers);
+                    return CompletableFuture.completedFuture(Collections.<ResourceRecord>emptySet());
                 }
+                return findNameserverAddresses(nameservers, glue, indirectionLevel).thenCompose(nextServers -> {
+                    if (nextServers.isEmpty())
+                        return CompletableFuture.completedFuture(Collections.<ResourceRecord>emptySet());
+                    return retrieveResultsFromServer(node, nextServers, indirectionLevel, zoneServers);
+                });
             }
-            // if we have results in the answer section, then we might have CNAMEs to deal with, in which case we follow
-            // the CNAMEs down to an IP
-            for (ResourceRecord answer: answers){
-                RecordType answerType = RecordType.getByCode(answer.getType());
-                if (answerType.equals(RecordType.getByCode(CNAME))){
-                    String cnameHostName = answer.getTextResult();
-                    DNSNode cnameNode = new DNSNode(cnameHostName, RecordType.A);
-                    retrieveResultsFromServer(cnameNode, node, rootServer);
+            if (zoneServers != null) zoneServers.complete(servers);
+
+            // if the answer section is not empty, we have a mapping from our hostname to an IP or we have a mapping from
+            // our hostname to a CNAME, in the latter case we need to follow the CNAME as the new hostname. Servers often
+            // answer with the whole chain (e.g., a CNAME to b, b CNAME to c, and the addresses of c), so the chain is
+            // followed within the answer section first, and only a target without records there is looked up anew
+            List<DNSNode> aliases = new ArrayList<>();
+            DNSNode target = node;
+            Set<ResourceRecord> results = new HashSet<>();
+            while (indirectionLevel + aliases.size() <= MAX_INDIRECTION_LEVEL){
+                ResourceRecord cname = null;
+                for (ResourceRecord answer: answers){
+                    if (answer.getNode().compareTo(target) == 0){
+                        results.add(answer);
+                    } else if (answer.getType() == CNAME && answer.getNode().getName().equals(target.getName())){
+                        cname = answer;
+                    }
                 }
+                if (!results.isEmpty() || cname == null) break;
+                aliases.add(target);
+                target = new DNSNode(cname.getTextResult(), node.getType());
             }
-        }
+            if (aliases.isEmpty()){
+                if (results.isEmpty())
+                    cacheNegativeResult(node, response, false);
+                return CompletableFuture.completedFuture(results);
+            }
+            if (!results.isEmpty()){
+                return CompletableFuture.completedFuture(cacheForAliases(aliases, results));
+            }
+
+            // the end of the chain is looked up like any other node, starting from the closest zone whose servers
+            // are cached, unless it leads back to this node
+            if (isCnameLoop(node.getName(), target.getName())) {
+                System.err.println("CNAME loop detected for " + node.getHostName() + ".");
+                return CompletableFuture.completedFuture(Collections.<ResourceRecord>emptySet());
+            }
+            return getResults(target, indirectionLevel + aliases.size())
+                    .thenApply(targetResults -> cacheForAliases(aliases, targetResults));
+        });
     }
 
     /**
-     * sends a DNS query to the node at port 53
-     * @param socket where we send the query from
-     * @param id transaction id of our query
-     * @param node host name and resource record type of the query
-     * @param server where we are sending the query to
-     * @return the transaction id of the query (later used to check equality with response transaction id)
+     * Caches a copy of each result of the target of a CNAME chain for every alias of the chain, so that later lookups
+     * of any of the aliases are answered from the cache. The CNAME records themselves are cached as they are received.
+     *
+     * @param aliases       Nodes of the chain leading to the target, starting with the node looked up.
+     * @param targetResults Results of the target of the chain.
+     * @return The copies of the results for the node looked up.
      */
-    private static byte[] sendQuery(DatagramSocket socket, byte[] id, DNSNode node, InetAddress server) {
-        // write the query
-        byte[] query = writeQuery(id, node);
-
-        // create the packet
-        DatagramPacket packet = new DatagramPacket(query, query.length, server, DEFAULT_DNS_PORT);
-
-        // send the packet
-        try {
-            socket.send(packet);
-        } catch (IOException e) {
-            printErrorResponse(node);
-            return null;
+    private static Set<ResourceRecord> cacheForAliases(List<DNSNode> aliases, Set<ResourceRecord> targetResults) {
+        Set<ResourceRecord> results = new HashSet<>();
+        for (int i = aliases.size() - 1; i >= 0; i--){
+            results = new HashSet<>();
+            for (ResourceRecord targetResult: targetResults){
+                ResourceRecord augmentedResourceRecord = targetResult.copyFor(aliases.get(i));
+                cache.addResult(augmentedResourceRecord);
+                results.add(augmentedResourceRecord);
+            }
         }
-
-        // return the transaction id
-        return id;
+        return results;
     }
 
     /**
-     * writes the HEADER, NAME, TYPE and CLASS sections of a query
-     * @param id transaction id of the query
-     * @param node node of which we are querying
-     * @return byte array representing the query
+     * Checks whether following a CNAME would lead back to its owner, by following the chain of cached CNAME records
+     * from its target. Every CNAME of a chain is cached as it is found, so a loop is detected as soon as the chain
+     * closes, rather than after MAX_INDIRECTION_LEVEL redirections.
+     *
+     * @param name   Owner of the CNAME.
+     * @param target Target of the CNAME.
+     * @return true if the target is the owner itself, or is an alias of it.
      */
-    private static byte[] writeQuery(byte[] id, DNSNode node){
-        // create a new output stream for the contents of the query
-        ByteArrayOutputStream queryOutputStream = new ByteArrayOutputStream();
-
-        // write HEADER section
-        writeHeader(queryOutputStream, id);
-
-        // write NAME section
-        int questionLength = 0;
-        String[] segs = node.getHostName().split("\\."); // seg is an alphabetical artifact in hostName eg. "google", "com"
-        for (String seg:segs) {                     // for each seg, write it to query and update the query length
-            byte[] segBytes = seg.getBytes();
-            int segLength = segBytes.length;
-            queryOutputStream.write(segLength);                   // write the length of the seg
-            queryOutputStream.write(segBytes, 0, segLength);      // write the actual seg
-            questionLength += 1 + segLength;                      // keep track of the question length
+    private static boolean isCnameLoop(DomainName name, DomainName target) {
+        for (int i = 0; i <= MAX_INDIRECTION_LEVEL; i++) {
+            if (target.equals(name)) return true;
+            Set<ResourceRecord> cnames = cache.peek(new DNSNode(target, RecordType.CNAME));
+            if (cnames.isEmpty()) return false;
+            target = DomainName.of(cnames.iterator().next().getTextResult());
         }
-        queryOutputStream.write(0); // write a 0 to signify we are done,
-        questionLength += 1;        // and increment length accordingly
-
-        // write TYPE section
-        boolean isIPv6 =  false;
-        if (node.getType().getCode() == AAAA){
-            isIPv6 = true;
-        }
-        queryOutputStream.write(0);
-        if (isIPv6) {           // write a 28 if IPv6, write a 1 if IPv4
-            queryOutputStream.write(28);
-        } else {
-            queryOutputStream.write(1);
-        }
-        questionLength += 2;
+        return false;
+    }
 
-        // write CLASS section
-        queryOutputStream.write(0);
-        queryOutputStream.write(1);
-        questionLength += 2;
+    /**
+     * Caches the absence of results for a node (RFC 2308), if the response is authoritative, has an SOA record in its
+     * nameserver section stating how long that absence may be cached, and no nameserver records referring the query
+     * elsewhere. Negative answers of non-authoritative (e.g., lame) servers are never cached, so that a single bad
+     * server can't hide a name for the whole negative TTL, and the absence of records (NODATA) is only cached for the
+     * type the response is about, so that, e.g., the NODATA of an A query never hides the NS records of a zone.
+     *
+     * @param node      Host name and record type that has no results.
+     * @param response  Response stating the node has no results.
+     * @param nameError true if the host name does not exist (NXDOMAIN), false if it has no records of this type (NODATA).
+     * @return true if a negative record was cached, false otherwise.
+     */
+    private static boolean cacheNegativeResult(DNSNode node, Response response, boolean nameError) {
+        if (!response.getAuth()) return false;
+        if (!nameError && response.getQuestionType() != node.getType().getCode()) return false;
+        long ttl = response.getNegativeTTL();
+        if (ttl < 0) return false;
+        for (int i = 0; i < response.getRecordCount(Response.NAMESERVER_SECTION); i++)
+            if (response.getRecordType(Response.NAMESERVER_SECTION, i) == NS) return false;
+
+        cache.addResult(new ResourceRecord(node, ttl, nameError));
+        return true;
+    }
 
-        // return the query
-        return queryOutputStream.toByteArray();
+    /**
+     * Finds the glue of a response: the A and AAAA records of its additional information section whose owner is one of
+     * the nameservers of its nameserver section. Only those records are decoded.
+     *
+     * @param response    Response whose glue is found.
+     * @param nameservers Nameserver section of the response.
+     * @return The glue records, empty if there are none.
+     */
+    private static List<ResourceRecord> findGlue(Response response, List<ResourceRecord> nameservers) {
+        List<ResourceRecord> glue = new ArrayList<>();
+        for (int i = 0; i < response.getRecordCount(Response.ADDITIONAL_SECTION); i++) {
+            int type = response.getRecordType(Response.ADDITIONAL_SECTION, i);
+            if (type != A && type != AAAA) continue;
+            for (ResourceRecord nameserver : nameservers) {
+                if (nameserver.getType() == NS &&
+                        response.recordNameEquals(Response.ADDITIONAL_SECTION, i, nameserver.getTextResult())) {
+                    glue.add(response.getRecord(Response.ADDITIONAL_SECTION, i));
+                    break;
+                }
+            }
+        }
+        return glue;
     }
 
     /**
-     * writes the header for a standard query
-     * @param queryOutputStream where we are writing to
-     * @param id the transaction ID to be included in the header
+     * Sends a query to one of a list of equivalent servers, and moves on to the next server in the list if that server
+     * does not respond in time or fails to answer (SERVFAIL or REFUSED). The timeout used for each server is derived
+     * from its past round-trip times. Every server of the list is tried once, or the list is cycled through if it has
+     * fewer than MAX_QUERY_ATTEMPTS servers, but no new server is tried once the deadline has passed, so that a zone
+     * with many unresponsive servers can't hold up a lookup for the sum of their timeouts.
+     *
+     * @param node     Host name and record type to be used for the query.
+     * @param servers  Addresses of the servers, in the order they should be tried.
+     * @param attempt  Number of servers already tried.
+     * @param deadline Time after which no new server is tried, in System.nanoTime() units.
+     * @return A future completed with the first successful response, or with the last response or failure if no
+     *         server answered successfully.
      */
-    private static void writeHeader(ByteArrayOutputStream queryOutputStream, byte[] id) {
-        // TRANSACTION ID
-        queryOutputStream.write(id, 0, 2);
-        // FLAGS
-        queryOutputStream.write(0);
-        queryOutputStream.write(0);
-        // QUESTIONS (there is one question)
-        queryOutputStream.write(0);
-        queryOutputStream.write(1);
-        // ANSWER RRs (there are no answers)
-        queryOutputStream.write(0);
-        queryOutputStream.write(0);
-        // AUTHORITY RRs (there are none)
-        queryOutputStream.write(0);
-        queryOutputStream.write(0);
-        // ADDITIONAL RRs (there are none)
-        queryOutputStream.write(0);
-        queryOutputStream.write(0);
+    private static CompletableFuture<Response> queryServers(DNSNode node, List<InetAddress> servers, int attempt,
+                                                            long deadline) {
+        InetAddress server = servers.get(attempt % servers.size());
+        return engine.query(node, server, serverStatistics.getTimeoutMillis(server)).handle((response, ex) -> {
+            boolean failed = ex != null ||
+                    response.getRcode() == Response.RCODE_SERVER_ERROR ||
+                    response.getRcode() == Response.RCODE_REFUSED_ERROR;
+            if (failed && attempt + 1 < Math.max(servers.size(), MAX_QUERY_ATTEMPTS) && System.nanoTime() - deadline < 0)
+                return queryServers(node, servers, attempt + 1, deadline);
+            if (ex != null)
+                return CompletableFuture.<Response>failedFuture(ex);
+            return CompletableFuture.completedFuture(response);
+        }).thenCompose(future -> future);
     }
 
     /**
-     * retrieves the corresponding response of the given transaction id from the socket
-     * @param socket socket to receive response from
-     * @param responsePacket response packet to be received
-     * @param id transaction to match with the query transaction id
-     * @return raw response data as an array of bytes
+     * Finds the addresses of the nameservers a server referred us to. Glue records in the additional section of the
+     * referral are used first, then addresses already in the cache. Only if none of the nameservers has a known
+     * address are the nameservers' names resolved, through this resolver like any other lookup, a few of them at
+     * the same time so that a slow or broken nameserver name doesn't hold up the others.
+     *
+     * @param nameservers      Nameserver section of the referral.
+     * @param glue             Glue records of the referral.
+     * @param indirectionLevel Indirection level of the lookup the referral is for.
+     * @return A future completed with the addresses of the nameservers, empty if no address could be found.
      */
-    private static byte[] getResponse(DatagramSocket socket, DatagramPacket responsePacket, byte[] id){
-        // create an array to hold the response
-        byte[] responseBytes;
+    private static CompletableFuture<List<InetAddress>> findNameserverAddresses(List<ResourceRecord> nameservers,
+                                                                              List<ResourceRecord> glue,
+                                                                              int indirectionLevel) {
+        List<String> nameserverNames = new ArrayList<>();
+        for (ResourceRecord nameserver : nameservers)
+            if (nameserver.getType() == NS)
+                nameserverNames.add(nameserver.getTextResult());
+
+        // glue records, IPv6 addresses only if there are no IPv4 addresses
+        List<InetAddress> addresses = new ArrayList<>();
+        for (int type : new int[]{A, AAAA}) {
+            for (String name : nameserverNames)
+                for (ResourceRecord glueRecord : glue)
+                    if (glueRecord.getType() == type && glueRecord.getHostName().equalsIgnoreCase(name)) {
+                        InetAddress address = toInetAddress(glueRecord);
+                        if (address != null) addresses.add(address);
+                    }
+            if (!addresses.isEmpty()) return CompletableFuture.completedFuture(addresses);
+        }
 
-        // attempt to receive the response, return null on timeout or IOException
-        while (true) {
-            try {
-                socket.receive(responsePacket);
-            } catch (SocketTimeoutException e) {
-                return null; // this cascades down and ends up causing the printErrorResponse method to get called
-            } catch (IOException e) {
-                return null; // this cascades down and ends up causing the printErrorResponse method to get called
+        // cached addresses
+        for (String name : nameserverNames)
+            for (ResourceRecord cached : cache.peek(new DNSNode(name, RecordType.A))) {
+                InetAddress address = toInetAddress(cached);
+                if (address != null) addresses.add(address);
             }
+        if (!addresses.isEmpty()) return CompletableFuture.completedFuture(addresses);
 
-            // store the bytes from the response in the array
-            responseBytes = responsePacket.getData();
+        CompletableFuture<List<InetAddress>> resolved = new CompletableFuture<>();
+        if (nameserverNames.isEmpty()) {
+            resolved.complete(Collections.emptyList());
+            return resolved;
+        }
+        AtomicInteger next = new AtomicInteger(0);
+        AtomicInteger remaining = new AtomicInteger(nameserverNames.size());
+        for (int i = 0; i < MAX_CONCURRENT_NAMESERVER_LOOKUPS; i++)
+            resolveNameserverAddresses(nameserverNames, next, remaining, resolved, indirectionLevel);
+        return resolved;
+    }
 
-            // check if the transaction IDs match, exit loop when they do
-            if (responseBytes[0] == id[0] && responseBytes[1] == id[1]) {
-                break;
+    /**
+     * Resolves the next name of a list of nameservers that no one else is resolving yet, and then the next one after
+     * that if it has no address, until one of the nameservers has an address. Several of these run at the same time
+     * for the same list, and the first address found wins.
+     *
+     * @param nameserverNames  Names of the nameservers.
+     * @param next             Index of the next name to be resolved, shared by everyone resolving the list.
+     * @param remaining        Number of names not resolved yet, shared by everyone resolving the list.
+     * @param resolved         Completed with the addresses of the first nameserver that has any, or empty once
+     *                         every name was resolved and none has an address.
+     * @param indirectionLevel Indirection level of the lookup the nameservers are needed for.
+     */
+    private static void resolveNameserverAddresses(List<String> nameserverNames, AtomicInteger next,
+                                                   AtomicInteger remaining, CompletableFuture<List<InetAddress>> resolved,
+                                                   int indirectionLevel) {
+        int index = next.getAndIncrement();
+        if (index >= nameserverNames.size() || resolved.isDone())
+            return;
+
+        DNSNode nameserverNode = new DNSNode(nameserverNames.get(index), RecordType.A);
+        getResults(nameserverNode, indirectionLevel + 1).thenAccept(results -> {
+            List<InetAddress> addresses = new ArrayList<>();
+            for (ResourceRecord result : results) {
+                InetAddress address = toInetAddress(result);
+                if (address != null) addresses.add(address);
             }
-        }
+            if (!addresses.isEmpty())
+                resolved.complete(addresses);
+            else if (remaining.decrementAndGet() == 0)
+                resolved.complete(Collections.emptyList());
+            else
+                resolveNameserverAddresses(nameserverNames, next, remaining, resolved, indirectionLevel);
+        });
+    }
 
-        // return the bytes of the response held in a byte array
-        return responseBytes;
+    /**
+     * converts the result of an A or AAAA record to an address
+     * @param record the record holding the address
+     * @return the address, or null if the record does not hold an address
+     */
+    private static InetAddress toInetAddress(ResourceRecord record) {
+        if (record.getType() != A && record.getType() != AAAA)
+            return null;
+        // built from the bits of the address, so no lookup is performed here
+        return record.getInetResult();
     }
 
     private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
@@ -461,26 +1079,57 @@ public class DNSLookupService {
      * @param results Set of results to be printed for the node.
      */
     private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+        // results are printed in a single call, so that concurrent lookups don't interleave their lines
+        StringBuilder output = new StringBuilder();
+        Formatter formatter = new Formatter(output);
         if (results.isEmpty())
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+            formatter.format("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
         for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                    node.getType(), record.getTTL(), record.getTextResult());
+            // the results of an ANY_ADDR lookup are of both address types
+            formatter.format("%-30s %-5s %-8d %s\n", node.getHostName(),
+                    RecordType.getByCode(record.getType()), record.getTTL(), record.getTextResult());
         }
+        System.out.print(output);
+    }
+
+    /**
+     * prints the metrics of the resolver: lookups and their latency, upstream queries and how they ended, the cache,
+     * and the round-trip times of the busiest servers
+     */
+    private static void printStats() {
+        StringBuilder output = new StringBuilder();
+        Formatter formatter = new Formatter(output, Locale.ROOT);
+        formatter.format("Lookups:          %d (%d without results)\n", metrics.getLookupCount(), metrics.getFailedLookupCount());
+        formatter.format("Latency (ms):     p50 %.3f  p99 %.3f  p999 %.3f  max %.3f\n", metrics.getLookupLatencyP50(),
+                metrics.getLookupLatencyP99(), metrics.getLookupLatencyP999(), metrics.getLookupLatencyMax());
+        formatter.format("Upstream queries: %d (%.2f per lookup), %d over TCP, %d timed out\n", metrics.getUpstreamQueryCount(),
+                metrics.getUpstreamQueriesPerLookup(), metrics.getTcpQueryCount(), metrics.getTimeoutCount());
+        formatter.format("Response codes:   %s\n", String.join(" ", metrics.getResponseCodeCounts()));
+        formatter.format("Cache:            %d hits, %d negative hits, %d misses (%.1f%% hits), %d expired, %d evicted, %d records\n",
+                metrics.getCacheHitCount(), metrics.getCacheNegativeHitCount(), metrics.getCacheMissCount(),
+                100 * metrics.getCacheHitRatio(),
+                metrics.getCacheExpiredCount(), metrics.getCacheEvictionCount(), metrics.getCachedRecordCount());
+        String[] servers = metrics.getServerLatencies();
+        formatter.format("Servers:          %d\n", servers.length);
+        for (int i = 0; i < Math.min(servers.length, MAX_STATS_SERVERS); i++)
+            formatter.format("  %s\n", servers[i]);
+        if (servers.length > MAX_STATS_SERVERS)
+            formatter.format("  ... and %d more\n", servers.length - MAX_STATS_SERVERS);
+        System.out.print(output);
     }
 
     /**
      * prints the response trace as specified by the assignment description
-     * @param id transaction id of the response
-     * @param isAuth is the response authoritative?
-     * @param answers answer resource records
-     * @param servers server resource records
-     * @param additionalInformations additional information resource records
+     * @param response the response, whose records are only decoded if tracing is on
      */
-    private static void printResponseTrace(int id, boolean isAuth, ArrayList<ResourceRecord> answers, ArrayList<ResourceRecord> servers, ArrayList<ResourceRecord> additionalInformations) {
+    private static void printResponseTrace(Response response) {
         if (verboseTracing){
-            System.out.format("Response ID: %d Authoritative = %b\n", id, isAuth);
+            ArrayList<ResourceRecord> answers = response.getAnswers();
+            ArrayList<ResourceRecord> servers = response.getServers();
+            ArrayList<ResourceRecord> additionalInformations = response.getAdditionals();
+
+            System.out.format("Response ID: %d Authoritative = %b\n", response.getID(), response.getAuth());
 
             System.out.format("  Answers (%d)\n", answers.size());
             for (ResourceRecord answer : answers) {
@@ -503,22 +1152,13 @@ public class DNSLookupService {
      * prints a trace of the query that was just sent to a server
      * @param id transaction id of the query
      * @param hostName name we are querying for
-     * @param isIPv6 is the query for an IPv6 address?
+     * @param type record type of the query
      * @param server server that we are sending to
      */
-    private static void printQueryTrace(byte[] id, String hostName, boolean isIPv6, InetAddress server) {
+    private static void printQueryTrace(int id, String hostName, RecordType type, InetAddress server) {
         if (verboseTracing){
-            System.out.format("\n\nQuery ID     %d %s  %s --> %s\n", Response.parseByteToInt(id, 0, 2), hostName, (isIPv6) ? "AAAA" : "A", server.getHostAddress());
+            System.out.format("\n\nQuery ID     %d %s  %s --> %s\n", id, hostName, type, server.getHostAddress());
         }
     }
 
-    /**
-     * prints the error response specified in the assignment description
-     * @param node the node that queried for but invoked an error
-     */
-    private static void printErrorResponse(DNSNode node){
-        System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                node.getType(), -1, "0.0.0.0");
-    }
-
 }
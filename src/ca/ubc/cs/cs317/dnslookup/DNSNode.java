@@ -3,29 +3,32 @@ package ca.ubc.cs.cs317.dnslookup;
 import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
- * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * Each node represents a fully-qualified domain name and a record type. Names are kept in
+ * canonical (lowercase) form and interned, so two nodes with the same host name (ignoring case)
+ * and type are considered equal, and usually share the same name object.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
-    private String hostName;
-    private RecordType type;
+    private static final long serialVersionUID = 1L;
 
-    /**
-     * changes the hostName of the node, used when dealing with CNAMEs
-     * @param newHostName the hostName to replace the current hostName with
-     */
-    public void changeHostName(String newHostName){
-        this.hostName = newHostName;
-    }
+    private final DomainName name;
+    private final RecordType type;
 
     public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
+        this(DomainName.of(hostName), type);
+    }
+
+    public DNSNode(DomainName name, RecordType type) {
+        this.name = name;
         this.type = type;
     }
 
     public String getHostName() {
-        return hostName;
+        return name.toString();
+    }
+
+    public DomainName getName() {
+        return name;
     }
 
     public RecordType getType() {
@@ -39,26 +42,27 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
+        if (!name.equals(dnsNode.name)) return false;
         return type == dnsNode.type;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
+        int result = name.hashCode();
+        result = 31 * result + type.ordinal();
         return result;
     }
 
     @Override
     public String toString() {
-        return hostName + " (" + type + ")";
+        return name + " (" + type + ")";
     }
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        int result = name.compareTo(o.name);
+        if (result != 0)
+            return result;
         else
             return type.compareTo(o.type);
     }
@@ -0,0 +1,173 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** A fully-qualified domain name in canonical form: lowercase, without a trailing dot, and with
+ * the root represented by the empty string. Names are interned, so that every DNS node and
+ * resource record with the same name (e.g., the many records owned by "com") shares a single
+ * instance, and equal names are usually the same object. Interned names are only weakly held,
+ * and are forgotten once nothing refers to them anymore.
+ *
+ * The hash of a name, its parent name and its wire format (as sent in the question section of a
+ * query) are computed once and kept with the name.
+ */
+public final class DomainName implements Comparable<DomainName>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    // the intern table is split into independently locked stripes, so that lookups resolving
+    // different names don't contend for a single lock
+    private static final int STRIPES = 16;
+    private static final List<Map<String, WeakReference<DomainName>>> internTable = new ArrayList<>(STRIPES);
+
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            internTable.add(new WeakHashMap<>());
+    }
+
+    public static final DomainName ROOT = of("");
+
+    private final String name;
+    private final int hash;
+
+    private transient volatile DomainName parent;
+    private transient volatile byte[] wireFormat;
+
+    private DomainName(String name) {
+        this.name = name;
+        this.hash = name.hashCode();
+    }
+
+    /** Returns the interned domain name equal to a host name, ignoring case and any trailing dot.
+     *
+     * @param hostName A host name, e.g., "www.Google.com" or "www.google.com.".
+     * @return The canonical domain name, e.g., "www.google.com".
+     */
+    public static DomainName of(String hostName) {
+        String canonical = canonicalize(hostName);
+        Map<String, WeakReference<DomainName>> stripe = internTable.get(spread(canonical.hashCode()) & (STRIPES - 1));
+        synchronized (stripe) {
+            WeakReference<DomainName> reference = stripe.get(canonical);
+            DomainName domainName = reference == null ? null : reference.get();
+            if (domainName == null) {
+                domainName = new DomainName(canonical);
+                // the key is held weakly, so it must be the string held by the name itself
+                stripe.remove(canonical);
+                stripe.put(domainName.name, new WeakReference<>(domainName));
+            }
+            return domainName;
+        }
+    }
+
+    /** Returns the name of the zone immediately enclosing this name, e.g., "google.com" for
+     * "www.google.com".
+     *
+     * @return The parent name, or null if this is the root.
+     */
+    public DomainName getParent() {
+        if (name.isEmpty()) return null;
+        DomainName result = parent;
+        if (result == null) {
+            int dot = name.indexOf('.');
+            result = dot < 0 ? ROOT : of(name.substring(dot + 1));
+            parent = result;
+        }
+        return result;
+    }
+
+    /** Returns this name in wire format: a sequence of labels, each preceded by its length, and
+     * terminated by the empty root label.
+     *
+     * Empty labels, e.g., from consecutive dots, are skipped.
+     *
+     * @return The encoded name, which must not be modified.
+     * @throws IllegalArgumentException if a label is longer than 63 bytes, or the name longer than 255 bytes.
+     */
+    public byte[] getWireFormat() {
+        byte[] encoded = wireFormat;
+        if (encoded == null) {
+            encoded = encode();
+            wireFormat = encoded;
+        }
+        return encoded;
+    }
+
+    private byte[] encode() {
+        // one length byte per label, which takes the place of the dot before the label, and the root label
+        byte[] encoded = new byte[name.isEmpty() ? 1 : name.length() + 2];
+
+        int length = 0;
+        int labelStart = 0;
+        while (labelStart < name.length()) {
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0) labelEnd = name.length();
+            int labelLength = labelEnd - labelStart;
+            if (labelLength > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Label longer than " + MAX_LABEL_LENGTH + " bytes in " + name);
+
+            // empty labels, e.g., from consecutive dots, are skipped
+            if (labelLength > 0) {
+                encoded[length++] = (byte) labelLength;
+                for (int i = labelStart; i < labelEnd; i++)
+                    encoded[length++] = (byte) name.charAt(i);
+            }
+            labelStart = labelEnd + 1;
+        }
+        encoded[length++] = 0;
+        if (length > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+        return length == encoded.length ? encoded : Arrays.copyOf(encoded, length);
+    }
+
+    private static String canonicalize(String hostName) {
+        if (hostName.endsWith("."))
+            hostName = hostName.substring(0, hostName.length() - 1);
+        for (int i = 0; i < hostName.length(); i++)
+            if (Character.isUpperCase(hostName.charAt(i)))
+                return hostName.toLowerCase(Locale.ROOT);
+        return hostName;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Interns names read back from a serialized form. */
+    private Object readResolve() {
+        return of(name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DomainName domainName = (DomainName) o;
+        return hash == domainName.hash && name.equals(domainName.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public int compareTo(DomainName o) {
+        return name.compareTo(o.name);
+    }
+}
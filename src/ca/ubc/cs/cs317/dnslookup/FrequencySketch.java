@@ -0,0 +1,84 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** This class keeps an approximate count of how often each DNS node is accessed, using a
+ * count-min sketch of small counters, one byte each and capped at 15: each node increments (and
+ * is estimated by) four counters selected by different hashes, so a few bytes per cached node are
+ * enough to tell frequently used nodes from one-off ones. All counters are halved periodically, so
+ * that counts reflect recent popularity rather than all-time popularity.
+ *
+ * Counters are updated without synchronization. A lost increment only makes the estimate
+ * slightly lower, which is acceptable for deciding what to keep in the cache.
+ */
+public class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb3b2a55f, 0x2ff6b45d, 0x5d8eb6b1};
+
+    private final byte[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * CONSTRUCTOR: FrequencySketch Object
+     * @param expectedNodes number of nodes whose frequency should be told apart, usually the
+     *                      maximum number of nodes in the cache
+     */
+    public FrequencySketch(long expectedNodes) {
+        int width = Integer.highestOneBit((int) Math.max(16, Math.min(expectedNodes, 1 << 24)) - 1) << 1;
+        this.counters = new byte[width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * records an access to a node
+     * @param node the node that was accessed
+     */
+    public void increment(DNSNode node) {
+        int hash = spread(node.hashCode());
+        boolean added = false;
+        for (int seed : SEEDS) {
+            int i = index(hash, seed);
+            if (counters[i] < MAX_COUNT) {
+                counters[i]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /**
+     * @param node the node whose frequency is estimated
+     * @return the estimated number of recent accesses to the node, capped at 15
+     */
+    public int frequency(DNSNode node) {
+        int hash = spread(node.hashCode());
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS)
+            frequency = Math.min(frequency, counters[index(hash, seed)]);
+        return frequency;
+    }
+
+    /**
+     * halves every counter, so that old accesses gradually stop counting
+     */
+    private synchronized void reset() {
+        if (additions < sampleSize) return;
+        for (int i = 0; i < counters.length; i++)
+            counters[i] >>= 1;
+        additions = 0;
+    }
+
+    private int index(int hash, int seed) {
+        int h = hash * seed;
+        return (h ^ (h >>> 17)) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,109 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A histogram of latencies with buckets of exponentially growing width, in the manner of
+ * HdrHistogram: each power of two is split into 32 linear sub-buckets, and a value is reported as
+ * the middle of its bucket, so any recorded value is known to within about 1.6% of its magnitude
+ * (to within half a microsecond below 64 microseconds), up to several minutes, with a fixed array
+ * of about a thousand counters. Recording a value is a couple of shifts and an atomic increment,
+ * cheap enough to be done for every lookup and every response, from any number of threads.
+ */
+public class LatencyHistogram {
+
+    // values are recorded in units of 1024 ns, about a microsecond
+    private static final int UNIT_SHIFT = 10;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    // larger values (about 18 minutes) are counted in the last bucket
+    private static final long MAX_UNITS = (1L << 40) - 1;
+    private static final int BUCKET_COUNT = indexOf(MAX_UNITS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * counts a latency in its bucket
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(Math.min(nanos >>> UNIT_SHIFT, MAX_UNITS)));
+        totalNanos.add(nanos);
+        if (nanos > maxNanos.get())
+            maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return the index of the bucket of a value: values below SUB_BUCKET_COUNT have a bucket each,
+     *         and every power of two above that is split into SUB_BUCKET_HALF_COUNT buckets
+     */
+    private static int indexOf(long units) {
+        if (units < SUB_BUCKET_COUNT)
+            return (int) units;
+        int magnitude = 64 - Long.numberOfLeadingZeros(units) - SUB_BUCKET_BITS;
+        return magnitude * SUB_BUCKET_HALF_COUNT + (int) (units >>> magnitude);
+    }
+
+    /**
+     * @return the value, in nanoseconds, in the middle of a bucket
+     */
+    private static long middleValueOf(int index) {
+        int magnitude = 0;
+        long subBucket = index;
+        if (index >= SUB_BUCKET_COUNT) {
+            magnitude = index / SUB_BUCKET_HALF_COUNT - 1;
+            subBucket = index % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        }
+        long width = 1L << (magnitude + UNIT_SHIFT);
+        return (subBucket << (magnitude + UNIT_SHIFT)) + width / 2;
+    }
+
+    /** @return Number of latencies recorded. */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /** @return Mean of the latencies recorded in nanoseconds, or 0 if there are none. */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count;
+    }
+
+    /** @return Highest latency recorded in nanoseconds, or 0 if there are none. */
+    public long getMax() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percentile percentage of the latencies, between 0 and 100
+     * @return the latency, in nanoseconds, that the given percentage of the latencies recorded are
+     *         at or below, to within the precision of the buckets, or 0 if there are none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(middleValueOf(i), getMax());
+        }
+        return getMax();
+    }
+}
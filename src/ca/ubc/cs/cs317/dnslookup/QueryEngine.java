@@ -0,0 +1,309 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/** This class sends DNS queries and matches them with their responses. All queries share a
+ * single UDP channel, and any number of them may be outstanding at the same time: each query
+ * is identified by its transaction ID, and a single receiver thread hands every incoming
+ * response to the query waiting for it. A slow or unresponsive server therefore only delays
+ * the queries that were sent to that server. The round-trip time of every response, and every
+ * timeout, is recorded in the server statistics, and in the metrics of the resolver along with
+ * every query sent and the response code of every response.
+ *
+ * Identical queries (same host name and type, same server) are only sent once while one of them
+ * is outstanding: later callers share the response of the query already sent.
+ *
+ * Queries advertise, with an EDNS(0) OPT record (RFC 6891), that responses of up to a configurable
+ * size may be sent over UDP, rather than the 512 bytes of plain DNS. A response that is still too
+ * large comes back truncated (TC bit set), and the query is then sent again over TCP, pipelined on
+ * a persistent connection to the server. A server that answers FORMERR to a query with an OPT
+ * record is asked again without one, and then only sent plain DNS queries for a while.
+ */
+public class QueryEngine implements Closeable {
+
+    public static final int DEFAULT_DNS_PORT = 53;
+    // fits in a single packet on virtually every network path, as recommended by DNS Flag Day 2020
+    public static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+
+    private static final int MAX_RESPONSE_LENGTH = 65535;
+    private static final int MAX_QUERY_LENGTH = 512;
+    private static final int OPT = 41;
+    private static final int MAX_OUTSTANDING_QUERIES = 60000;
+
+    // queries are written into a buffer reused by each sending thread
+    private static final ThreadLocal<ByteBuffer> QUERY_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_QUERY_LENGTH));
+
+    /** Listener notified whenever a query is sent out, e.g., to print a trace of the query.
+     */
+    public interface QueryListener {
+        void querySent(int id, DNSNode node, InetAddress server);
+    }
+
+    private final DatagramChannel channel;
+    private final int port;
+    private final Executor executor;
+    private final ServerStatistics serverStatistics;
+    private final ResolverMetrics metrics;
+    private final int ednsPayloadSize;
+    private final TcpTransport tcpTransport;
+    private final Thread receiver;
+    private final Map<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private final Map<Map.Entry<DNSNode, InetAddress>, CompletableFuture<Response>> inFlightQueries = new ConcurrentHashMap<>();
+
+    private volatile QueryListener listener = (id, node, server) -> {};
+
+    /**
+     * CONSTRUCTOR: QueryEngine Object
+     * @param executor executor used to parse responses and complete the futures of their queries,
+     *                 so that no work dependent on a response is run on the receiver thread
+     * @param serverStatistics where the round-trip times and timeouts of servers are recorded
+     * @param metrics where queries, round-trip times, timeouts and response codes are counted
+     * @param ednsPayloadSize largest UDP response advertised to servers, in bytes, or 0 to send
+     *                        queries without EDNS, in which case responses are limited to 512 bytes
+     * @param port port every server listens on, over both UDP and TCP: DEFAULT_DNS_PORT, or
+     *             another port for, e.g., local test servers
+     * @throws IOException if the UDP channel could not be opened
+     */
+    public QueryEngine(Executor executor, ServerStatistics serverStatistics, ResolverMetrics metrics, int ednsPayloadSize,
+                       int port) throws IOException {
+        this.executor = executor;
+        this.serverStatistics = serverStatistics;
+        this.metrics = metrics;
+        this.ednsPayloadSize = ednsPayloadSize;
+        this.port = port;
+        this.tcpTransport = new TcpTransport(executor, port);
+        this.channel = DatagramChannel.open();
+        this.channel.bind(null);
+        this.receiver = new Thread(this::receiveResponses, "dns-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    public void setListener(QueryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * sends a DNS query for the node to a server at the port of the engine (53 unless specified otherwise)
+     * @param node host name and resource record type of the query
+     * @param server where we are sending the query to
+     * @param timeoutMillis time to wait for a response before the query fails, twice as long if the
+     *                      query has to be sent again over TCP
+     * @return a future completed with the matching response, or completed exceptionally with a
+     *         TimeoutException if no response arrives in time (or an IOException if the query could
+     *         not be sent), shared with every identical query made while this one is outstanding
+     */
+    public CompletableFuture<Response> query(DNSNode node, InetAddress server, long timeoutMillis) {
+        if (pendingQueries.size() >= MAX_OUTSTANDING_QUERIES)
+            return CompletableFuture.failedFuture(new IOException("Too many outstanding queries"));
+        byte[] name;
+        try {
+            name = node.getName().getWireFormat();
+            checkQueryType(node.getType());
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // if the same query is already outstanding, wait for its response instead of sending another one
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        Map.Entry<DNSNode, InetAddress> key = Map.entry(node, server);
+        CompletableFuture<Response> inFlight = inFlightQueries.putIfAbsent(key, result);
+        if (inFlight != null)
+            return inFlight;
+        result.whenComplete((response, ex) -> {
+            inFlightQueries.remove(key, result);
+            if (response != null)
+                metrics.recordResponseCode(response.getRcode());
+            else if (ex instanceof TimeoutException || ex.getCause() instanceof TimeoutException)
+                metrics.recordTimeout(server);
+        });
+
+        // a server that does not understand EDNS answers FORMERR to a query with an OPT record, and
+        // is asked again without one (RFC 6891, section 7), which is remembered for a while
+        boolean edns = ednsPayloadSize > 0 && serverStatistics.supportsEdns(server);
+        send(node, name, server, timeoutMillis, edns).thenCompose(response -> {
+            if (!edns || response.getRcode() != Response.RCODE_FORMAT_ERROR)
+                return CompletableFuture.completedFuture(response);
+            serverStatistics.recordNoEdns(server);
+            return send(node, name, server, timeoutMillis, false);
+        }).whenComplete((response, ex) -> {
+            if (ex != null)
+                result.completeExceptionally(ex);
+            else
+                result.complete(response);
+        });
+        return result;
+    }
+
+    /**
+     * sends a query over UDP, and again over TCP if the response is truncated
+     * @param node host name and resource record type of the query
+     * @param name host name of the query, in wire format
+     * @param server where we are sending the query to
+     * @param timeoutMillis time to wait for a response, twice as long over TCP
+     * @param edns true to add an OPT record to the query
+     * @return a future completed with the response, over UDP or TCP
+     */
+    private CompletableFuture<Response> send(DNSNode node, byte[] name, InetAddress server, long timeoutMillis,
+                                             boolean edns) {
+        PendingQuery query = new PendingQuery(new InetSocketAddress(server, port));
+
+        // a truncated response is replaced by the response to the same query sent over TCP
+        CompletableFuture<Response> result = query.future.thenCompose(response -> {
+            if (!response.isTruncated())
+                return CompletableFuture.completedFuture(response);
+            ByteBuffer tcpQuery = writeQuery(query.id, name, node.getType(), edns);
+            byte[] tcpQueryBytes = new byte[tcpQuery.remaining()];
+            tcpQuery.get(tcpQueryBytes);
+            metrics.recordQuery(true);
+            return tcpTransport.query(tcpQueryBytes, server, 2 * timeoutMillis);
+        });
+
+        // pick a random transaction id that no other outstanding query is using
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt(0x10000);
+        } while (pendingQueries.putIfAbsent(id, query) != null);
+        query.id = id;
+
+        // release the transaction id as soon as the UDP query completes, whichever way it completes
+        query.future.whenComplete((response, ex) -> {
+            pendingQueries.remove(query.id, query);
+            if (ex instanceof TimeoutException)
+                serverStatistics.recordTimeout(server);
+        });
+        query.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        listener.querySent(id, node, server);
+
+        try {
+            query.sentNanos = System.nanoTime();
+            metrics.recordQuery(false);
+            channel.send(writeQuery(id, name, node.getType(), edns), query.server);
+        } catch (IOException e) {
+            query.future.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * receives every response arriving on the channel and completes the query with the matching
+     * transaction id, responses that match no outstanding query (e.g., late responses to queries
+     * that already timed out) are discarded
+     */
+    private void receiveResponses() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
+        while (true) {
+            SocketAddress source;
+            try {
+                buffer.clear();
+                source = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            buffer.flip();
+            if (buffer.remaining() < 2) continue;
+
+            int id = Response.parseByteToUnsignedInt(buffer.get(0)) << 8 | Response.parseByteToUnsignedInt(buffer.get(1));
+            PendingQuery query = pendingQueries.get(id);
+
+            // only accept the response from the server the query was sent to
+            if (query == null || !query.server.equals(source) || !pendingQueries.remove(id, query)) continue;
+            long rttNanos = System.nanoTime() - query.sentNanos;
+            serverStatistics.recordResponse(query.server.getAddress(), rttNanos);
+            metrics.recordResponseTime(query.server.getAddress(), rttNanos);
+
+            byte[] responseBytes = Arrays.copyOf(buffer.array(), buffer.limit());
+            executor.execute(() -> {
+                try {
+                    query.future.complete(new Response(responseBytes));
+                } catch (RuntimeException e) {
+                    // malformed response
+                    query.future.completeExceptionally(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * writes a query into the buffer of the calling thread, the name is copied from its wire format
+     * encoded once per name, so nothing is allocated (package-private so that it can be benchmarked
+     * on its own)
+     * @param id transaction id of the query
+     * @param name host name of the query, in wire format
+     * @param type record type of the query
+     * @param edns true to add an OPT record advertising the EDNS payload size of the engine, which
+     *             is never added if EDNS is off
+     * @return the buffer of the calling thread, holding the query between its position and limit
+     * @throws IllegalArgumentException if the type is ANY_ADDR or OTHER, which are never sent to servers
+     */
+    ByteBuffer writeQuery(int id, byte[] name, RecordType type, boolean edns) {
+        checkQueryType(type);
+        edns &= ednsPayloadSize > 0;
+        ByteBuffer buffer = QUERY_BUFFER.get();
+        buffer.clear();
+        buffer.putShort((short) id);    // TRANSACTION ID
+        buffer.putShort((short) 0);     // FLAGS (standard query, no recursion)
+        buffer.putShort((short) 1);     // QUESTIONS (there is one question)
+        buffer.putShort((short) 0);     // ANSWER RRs (there are no answers)
+        buffer.putShort((short) 0);     // AUTHORITY RRs (there are none)
+        buffer.putShort((short) (edns ? 1 : 0));  // ADDITIONAL RRs (the OPT record, if any)
+        buffer.put(name);               // NAME
+        buffer.putShort((short) type.getCode());    // TYPE
+        buffer.putShort((short) 1);     // CLASS (IN)
+        if (edns) {
+            buffer.put((byte) 0);                       // NAME (root)
+            buffer.putShort((short) OPT);               // TYPE
+            buffer.putShort((short) ednsPayloadSize);   // CLASS (UDP payload size)
+            buffer.putInt(0);                           // TTL (extended RCODE, version 0, no flags)
+            buffer.putShort((short) 0);                 // RDLENGTH (no options)
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param type record type of a query
+     * @throws IllegalArgumentException if the type has no code of its own to be sent to servers, i.e., ANY_ADDR,
+     *                                  which is looked up as separate A and AAAA queries, or OTHER
+     */
+    private static void checkQueryType(RecordType type) {
+        if (type.getCode() <= 0)
+            throw new IllegalArgumentException("Record type " + type + " can't be sent in a query");
+    }
+
+    /**
+     * closes the channel, failing every query still waiting for a response
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        tcpTransport.close();
+        for (PendingQuery query : pendingQueries.values())
+            query.future.completeExceptionally(new ClosedChannelException());
+    }
+
+    private static class PendingQuery {
+        private final InetSocketAddress server;
+        private final CompletableFuture<Response> future = new CompletableFuture<>();
+        private volatile int id;
+        private volatile long sentNanos;
+
+        private PendingQuery(InetSocketAddress server) {
+            this.server = server;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** An immutable set of the cached records of a single node, as stored by DNSCache. The records
+ * of an A or AAAA node, which make up most of a large cache, are not kept as ResourceRecord
+ * objects: their addresses and expiration times are packed into parallel arrays of longs, and a
+ * ResourceRecord is only recreated for each record when the set is read. The records of any other
+ * node (e.g., NS, CNAME, or a negative record) are kept as they are.
+ *
+ * Adding a record or removing expired records returns a new set, and never modifies this one.
+ */
+public abstract class RecordSet {
+
+    // approximate heap used by the set itself and by each of its arrays
+    private static final int SET_OVERHEAD = 16;
+    private static final int ARRAY_OVERHEAD = 16;
+    // approximate heap used by each record kept as a ResourceRecord, including its node
+    private static final int RECORD_OVERHEAD = 120;
+
+    /**
+     * @param record the only record of the set
+     * @return a new set with the record
+     */
+    public static RecordSet of(ResourceRecord record) {
+        if (record.isAddress())
+            return new AddressSet(record.getType() == ResourceRecord.TYPE_AAAA ? 2 : 1,
+                    new long[0], new long[0]).append(record);
+        return new ObjectSet(new ResourceRecord[]{record});
+    }
+
+    /** @return Number of records in the set, including expired ones. */
+    public abstract int size();
+
+    /**
+     * @param index index of a record in the set
+     * @return the time at which the record expires, in System.nanoTime() units
+     */
+    public abstract long getExpirationTime(int index);
+
+    /**
+     * @param node node the records of the set belong to
+     * @param index index of a record in the set
+     * @return the record
+     */
+    public abstract ResourceRecord get(DNSNode node, int index);
+
+    /** @return Estimated heap used by the set and its records, in bytes. */
+    public abstract long estimateSize();
+
+    /**
+     * @param index index of a record in the set
+     * @param record another record of the same node
+     * @return true if both records have the same result
+     */
+    protected abstract boolean matches(int index, ResourceRecord record);
+
+    /**
+     * @return a new set with the record at the index replaced by another record
+     */
+    protected abstract RecordSet replace(int index, ResourceRecord record);
+
+    /**
+     * @return a new set with another record added
+     */
+    protected abstract RecordSet append(ResourceRecord record);
+
+    /**
+     * @param keep whether each record of the set is kept
+     * @param count number of records kept
+     * @return a new set with only the records kept
+     */
+    protected abstract RecordSet filter(boolean[] keep, int count);
+
+    /**
+     * @return true if the record can be stored in the same layout as the records of this set
+     */
+    protected abstract boolean isSameLayout(ResourceRecord record);
+
+    /** Adds a record to the set. If the set already has a record with the same result, the
+     * existing record is replaced if the new one expires after the existing record, otherwise the
+     * existing record is maintained. A negative record replaces all the records of the set, and is
+     * itself replaced by any record that is not negative.
+     *
+     * @param record Record of the same node as the records of the set.
+     * @return A new set with the record, or this set if the record was not added.
+     */
+    public RecordSet with(ResourceRecord record) {
+        if (record.isNegative() || getNegativeRecord() != null || !isSameLayout(record))
+            return of(record);
+        for (int i = 0; i < size(); i++) {
+            if (matches(i, record)) {
+                if (getExpirationTime(i) - record.getExpirationTime() >= 0)
+                    return this;
+                return replace(i, record);
+            }
+        }
+        return append(record);
+    }
+
+    /**
+     * @param nowNanos the current time, in System.nanoTime() units
+     * @return this set if none of its records expired, a new set with only the records that are
+     *         still valid, or null if all of them expired
+     */
+    public RecordSet withoutExpired(long nowNanos) {
+        boolean[] keep = null;
+        int count = 0;
+        for (int i = 0; i < size(); i++) {
+            boolean valid = getExpirationTime(i) - nowNanos > 0;
+            if (!valid && keep == null) {
+                keep = new boolean[size()];
+                for (int j = 0; j < i; j++)
+                    keep[j] = true;
+            }
+            if (keep != null)
+                keep[i] = valid;
+            if (valid)
+                count++;
+        }
+        if (keep == null) return this;
+        return count == 0 ? null : filter(keep, count);
+    }
+
+    /** @return The time at which the first record of the set expires, in System.nanoTime() units. */
+    public long getEarliestExpirationTime() {
+        long earliest = getExpirationTime(0);
+        for (int i = 1; i < size(); i++)
+            if (getExpirationTime(i) - earliest < 0)
+                earliest = getExpirationTime(i);
+        return earliest;
+    }
+
+    /** @return The negative record of the set, or null if its records are not negative. */
+    public ResourceRecord getNegativeRecord() {
+        return null;
+    }
+
+    /**
+     * @param node node the records of the set belong to
+     * @param nowNanos the current time, in System.nanoTime() units
+     * @return an immutable set with the records that have not expired yet
+     */
+    public Set<ResourceRecord> toRecords(DNSNode node, long nowNanos) {
+        Set<ResourceRecord> records = new HashSet<>();
+        for (int i = 0; i < size(); i++)
+            if (getExpirationTime(i) - nowNanos > 0)
+                records.add(get(node, i));
+        return records.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(records);
+    }
+
+    /** The records of an A or AAAA node: one expiration time per record, and one (IPv4) or two
+     * (IPv6) longs per address.
+     */
+    private static class AddressSet extends RecordSet {
+        private final int width;
+        private final long[] expirationTimes;
+        private final long[] addresses;
+
+        private AddressSet(int width, long[] expirationTimes, long[] addresses) {
+            this.width = width;
+            this.expirationTimes = expirationTimes;
+            this.addresses = addresses;
+        }
+
+        @Override
+        public int size() {
+            return expirationTimes.length;
+        }
+
+        @Override
+        public long getExpirationTime(int index) {
+            return expirationTimes[index];
+        }
+
+        @Override
+        public ResourceRecord get(DNSNode node, int index) {
+            return ResourceRecord.ofAddress(node, expirationTimes[index], addresses[index * width],
+                    width == 2 ? addresses[index * width + 1] : 0);
+        }
+
+        @Override
+        public long estimateSize() {
+            return SET_OVERHEAD + 2 * ARRAY_OVERHEAD + 8L * (expirationTimes.length + addresses.length);
+        }
+
+        @Override
+        protected boolean matches(int index, ResourceRecord record) {
+            return addresses[index * width] == record.getAddressHigh() &&
+                    (width == 1 || addresses[index * width + 1] == record.getAddressLow());
+        }
+
+        @Override
+        protected RecordSet replace(int index, ResourceRecord record) {
+            long[] newExpirationTimes = expirationTimes.clone();
+            newExpirationTimes[index] = record.getExpirationTime();
+            return new AddressSet(width, newExpirationTimes, addresses);
+        }
+
+        @Override
+        protected RecordSet append(ResourceRecord record) {
+            int n = size();
+            long[] newExpirationTimes = new long[n + 1];
+            long[] newAddresses = new long[(n + 1) * width];
+            System.arraycopy(expirationTimes, 0, newExpirationTimes, 0, n);
+            System.arraycopy(addresses, 0, newAddresses, 0, n * width);
+            newExpirationTimes[n] = record.getExpirationTime();
+            newAddresses[n * width] = record.getAddressHigh();
+            if (width == 2)
+                newAddresses[n * width + 1] = record.getAddressLow();
+            return new AddressSet(width, newExpirationTimes, newAddresses);
+        }
+
+        @Override
+        protected RecordSet filter(boolean[] keep, int count) {
+            long[] newExpirationTimes = new long[count];
+            long[] newAddresses = new long[count * width];
+            int j = 0;
+            for (int i = 0; i < keep.length; i++) {
+                if (!keep[i]) continue;
+                newExpirationTimes[j] = expirationTimes[i];
+                System.arraycopy(addresses, i * width, newAddresses, j * width, width);
+                j++;
+            }
+            return new AddressSet(width, newExpirationTimes, newAddresses);
+        }
+
+        @Override
+        protected boolean isSameLayout(ResourceRecord record) {
+            return record.isAddress() && (record.getType() == ResourceRecord.TYPE_AAAA) == (width == 2);
+        }
+    }
+
+    /** The records of any other node, kept as ResourceRecord objects.
+     */
+    private static class ObjectSet extends RecordSet {
+        private final ResourceRecord[] records;
+
+        private ObjectSet(ResourceRecord[] records) {
+            this.records = records;
+        }
+
+        @Override
+        public int size() {
+            return records.length;
+        }
+
+        @Override
+        public long getExpirationTime(int index) {
+            return records[index].getExpirationTime();
+        }
+
+        @Override
+        public ResourceRecord get(DNSNode node, int index) {
+            return records[index];
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = SET_OVERHEAD + ARRAY_OVERHEAD;
+            for (ResourceRecord record : records)
+                size += 4 + RECORD_OVERHEAD + 2L * record.getTextResult().length();
+            return size;
+        }
+
+        @Override
+        public ResourceRecord getNegativeRecord() {
+            // negative records are always alone in their set
+            return records.length == 1 && records[0].isNegative() ? records[0] : null;
+        }
+
+        @Override
+        protected boolean matches(int index, ResourceRecord record) {
+            return records[index].equals(record);
+        }
+
+        @Override
+        protected RecordSet replace(int index, ResourceRecord record) {
+            ResourceRecord[] newRecords = records.clone();
+            newRecords[index] = record;
+            return new ObjectSet(newRecords);
+        }
+
+        @Override
+        protected RecordSet append(ResourceRecord record) {
+            ResourceRecord[] newRecords = new ResourceRecord[records.length + 1];
+            System.arraycopy(records, 0, newRecords, 0, records.length);
+            newRecords[records.length] = record;
+            return new ObjectSet(newRecords);
+        }
+
+        @Override
+        protected RecordSet filter(boolean[] keep, int count) {
+            ResourceRecord[] newRecords = new ResourceRecord[count];
+            int j = 0;
+            for (int i = 0; i < keep.length; i++)
+                if (keep[i])
+                    newRecords[j++] = records[i];
+            return new ObjectSet(newRecords);
+        }
+
+        @Override
+        protected boolean isSameLayout(ResourceRecord record) {
+            return !record.isAddress();
+        }
+    }
+}
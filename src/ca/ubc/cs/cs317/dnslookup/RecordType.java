@@ -1,10 +1,11 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 /** Record types supported by the application. Includes a few common record types that are not
- * fully supported by this application.
+ * fully supported by this application, and ANY_ADDR, a lookup type that is never sent to a server:
+ * it looks up the A and AAAA records of a name at the same time, and combines their results.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0), ANY_ADDR(-1);
 
     private int code;
 
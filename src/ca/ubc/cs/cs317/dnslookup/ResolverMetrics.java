@@ -0,0 +1,234 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** This class keeps always-on metrics of the resolver: the latency of every lookup, the number of
+ * queries sent upstream and how they ended (response codes, timeouts), the round-trip time of
+ * every server, and the cache counts: hits, negative hits and misses of client lookups (the
+ * resolver's own reads of nameservers and CNAMEs are not counted), expirations and evictions.
+ * Everything is counted with adders and histograms that are cheap to update from any thread, so
+ * unlike the trace, the metrics cost close to nothing when nobody looks at them.
+ *
+ * The metrics are read by the "stats" command, and can be registered as an MBean so that JMX
+ * clients can read them from a running resolver.
+ */
+public class ResolverMetrics implements ResolverMetricsMBean {
+
+    public static final String OBJECT_NAME = "ca.ubc.cs.cs317.dnslookup:type=ResolverMetrics";
+
+    private static final String[] RCODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    private final DNSCache cache;
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LongAdder failedLookupCount = new LongAdder();
+    private final LongAdder upstreamQueryCount = new LongAdder();
+    private final LongAdder tcpQueryCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final AtomicLongArray rcodeCounts = new AtomicLongArray(16);
+    private final Map<InetAddress, ServerMetrics> servers = new ConcurrentHashMap<>();
+
+    /**
+     * CONSTRUCTOR: ResolverMetrics Object
+     * @param cache the cache whose counts are reported along with the metrics of the resolver
+     */
+    public ResolverMetrics(DNSCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * registers the metrics with the platform MBean server, under OBJECT_NAME
+     * @throws JMException if the metrics could not be registered, e.g., because another instance already is
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * records the completion of a lookup made by a user of the resolver
+     * @param nanos time elapsed between the start of the lookup and its completion
+     * @param failed true if the lookup completed without results
+     */
+    public void recordLookup(long nanos, boolean failed) {
+        lookupLatency.record(nanos);
+        if (failed)
+            failedLookupCount.increment();
+    }
+
+    /**
+     * records a query sent to a server
+     * @param overTcp true if the query was sent over TCP, after a truncated response
+     */
+    public void recordQuery(boolean overTcp) {
+        upstreamQueryCount.increment();
+        if (overTcp)
+            tcpQueryCount.increment();
+    }
+
+    /**
+     * records the round-trip time of a response from a server
+     * @param server the server that sent the response
+     * @param rttNanos time elapsed between sending the query and receiving the response
+     */
+    public void recordResponseTime(InetAddress server, long rttNanos) {
+        servers.computeIfAbsent(server, address -> new ServerMetrics()).rtt.record(rttNanos);
+    }
+
+    /**
+     * @param rcode the response code of a response, over UDP or TCP
+     */
+    public void recordResponseCode(int rcode) {
+        rcodeCounts.incrementAndGet(rcode & 0xF);
+    }
+
+    /**
+     * @param server a server that did not respond in time
+     */
+    public void recordTimeout(InetAddress server) {
+        timeoutCount.increment();
+        servers.computeIfAbsent(server, address -> new ServerMetrics()).timeouts.increment();
+    }
+
+    public LatencyHistogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public long getFailedLookupCount() {
+        return failedLookupCount.sum();
+    }
+
+    @Override
+    public double getLookupLatencyP50() {
+        return toMillis(lookupLatency.getValueAtPercentile(50));
+    }
+
+    @Override
+    public double getLookupLatencyP99() {
+        return toMillis(lookupLatency.getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getLookupLatencyP999() {
+        return toMillis(lookupLatency.getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public double getLookupLatencyMax() {
+        return toMillis(lookupLatency.getMax());
+    }
+
+    @Override
+    public long getUpstreamQueryCount() {
+        return upstreamQueryCount.sum();
+    }
+
+    @Override
+    public long getTcpQueryCount() {
+        return tcpQueryCount.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public double getUpstreamQueriesPerLookup() {
+        long lookups = getLookupCount();
+        return lookups == 0 ? 0 : (double) getUpstreamQueryCount() / lookups;
+    }
+
+    @Override
+    public String[] getResponseCodeCounts() {
+        List<String> counts = new ArrayList<>();
+        for (int rcode = 0; rcode < rcodeCounts.length(); rcode++) {
+            long count = rcodeCounts.get(rcode);
+            if (count > 0)
+                counts.add((rcode < RCODE_NAMES.length ? RCODE_NAMES[rcode] : "RCODE" + rcode) + "=" + count);
+        }
+        return counts.toArray(new String[0]);
+    }
+
+    /**
+     * @return one line per server queried, busiest server first
+     */
+    @Override
+    public String[] getServerLatencies() {
+        List<Map.Entry<InetAddress, ServerMetrics>> entries = new ArrayList<>(servers.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<InetAddress, ServerMetrics> entry) ->
+                entry.getValue().rtt.getCount() + entry.getValue().timeouts.sum()).reversed());
+        String[] lines = new String[entries.size()];
+        for (int i = 0; i < lines.length; i++) {
+            InetAddress server = entries.get(i).getKey();
+            ServerMetrics metrics = entries.get(i).getValue();
+            lines[i] = String.format(Locale.ROOT, "%-39s %8d responses %6d timeouts   rtt ms p50 %.3f p99 %.3f p999 %.3f",
+                    server.getHostAddress(), metrics.rtt.getCount(), metrics.timeouts.sum(),
+                    toMillis(metrics.rtt.getValueAtPercentile(50)), toMillis(metrics.rtt.getValueAtPercentile(99)),
+                    toMillis(metrics.rtt.getValueAtPercentile(99.9)));
+        }
+        return lines;
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public long getCacheNegativeHitCount() {
+        return cache.getNegativeHitCount();
+    }
+
+    /**
+     * @return the fraction of client lookups answered from the cache, with records or with a negative answer
+     */
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHitCount() + getCacheNegativeHitCount();
+        long total = hits + getCacheMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getCacheExpiredCount() {
+        return cache.getExpiredCount();
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public long getCachedRecordCount() {
+        return cache.getRecordCount();
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static class ServerMetrics {
+        private final LatencyHistogram rtt = new LatencyHistogram();
+        private final LongAdder timeouts = new LongAdder();
+    }
+}
@@ -0,0 +1,47 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Management interface of the resolver metrics, through which JMX clients (e.g., jconsole) read
+ * them. Latencies are in milliseconds.
+ */
+public interface ResolverMetricsMBean {
+
+    long getLookupCount();
+
+    long getFailedLookupCount();
+
+    double getLookupLatencyP50();
+
+    double getLookupLatencyP99();
+
+    double getLookupLatencyP999();
+
+    double getLookupLatencyMax();
+
+    long getUpstreamQueryCount();
+
+    long getTcpQueryCount();
+
+    long getTimeoutCount();
+
+    double getUpstreamQueriesPerLookup();
+
+    /** @return Number of responses received with each rcode seen so far, e.g., "NXDOMAIN=12". */
+    String[] getResponseCodeCounts();
+
+    /** @return Number of responses, timeouts and round-trip time percentiles of every server queried. */
+    String[] getServerLatencies();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    long getCacheNegativeHitCount();
+
+    double getCacheHitRatio();
+
+    long getCacheExpiredCount();
+
+    long getCacheEvictionCount();
+
+    long getCachedRecordCount();
+}
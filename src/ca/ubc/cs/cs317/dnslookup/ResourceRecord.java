@@ -2,15 +2,23 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
- * and is represented by an expiration time calculated as a delta from the current time.
+ * and is represented by an expiration time calculated as a delta from the current time. The
+ * expiration time uses the monotonic clock of System.nanoTime(), so it is not affected by
+ * changes to the wall clock. For the same reason, a serialized record only expires at the right
+ * time in the JVM that serialized it, and is not portable to another JVM; records are carried
+ * over from one run to the next by the snapshots of the cache, which hold wall clock times.
  */
 public class ResourceRecord implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
     public static final int TYPE_NAMELENGTH_OFFSET = 0;
     public static final int CLASS_NAMELENGTH_OFFSET = 2;
     public static final int TYPE_LENGTH = 2;
@@ -24,16 +32,29 @@ public class ResourceRecord implements Serializable {
     public static final int TYPE_A = 1;
     public static final int TYPE_NS = 2;
     public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
     public static final int TYPE_AAAA = 28;
 
     public static final int CLASS_IP = 1;
 
-    private int recordLength;
+    // results of negative records
+    public static final String NAME_ERROR = "NXDOMAIN";
+    public static final String NO_DATA = "NODATA";
+
+    private final int recordLength;
+
+    private final DNSNode node;
+    private final long expirationTime;
+    private final boolean negative;
+
+    // A and AAAA results are held as the bits of the address: an IPv4 address in the low 32 bits of
+    // addressHigh, or an IPv6 address in addressHigh followed by addressLow
+    private final boolean address;
+    private final long addressHigh;
+    private final long addressLow;
 
-    private DNSNode node;
-    private Date expirationTime;
+    // formatted only when needed for the results of A and AAAA records
     private String textResult;
-    private InetAddress inetResult;
 
     /**
      * CONSTRUCTOR: ResourceRecord Object
@@ -43,13 +64,100 @@ public class ResourceRecord implements Serializable {
      * @param textResult name of the server, e.g. "a0.org.afilias-nst.info", "c-ca.servers.ca", "a.gtld-servers.net"
      */
     public ResourceRecord(String hostName, RecordType type, long ttl, String textResult, int recordLength) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this(new DNSNode(hostName, type), ttl, textResult, recordLength);
+    }
+
+    /**
+     * CONSTRUCTOR: ResourceRecord Object
+     * @param node host name and record type of the resource record
+     * @param ttl time-to-live of the resource record
+     * @param textResult name of the server, e.g. "a0.org.afilias-nst.info", "c-ca.servers.ca", "a.gtld-servers.net"
+     */
+    public ResourceRecord(DNSNode node, long ttl, String textResult, int recordLength) {
+        this(node, toExpirationTime(ttl), false, textResult, false, 0, 0, recordLength);
+    }
+
+    /**
+     * CONSTRUCTOR: ResourceRecord Object for an A or AAAA record, whose result is kept as the bits of the address and
+     * only formatted as text when needed
+     * @param node host name and record type (A or AAAA) of the resource record
+     * @param ttl time-to-live of the resource record
+     * @param addressHigh an IPv4 address in its low 32 bits, or the first 64 bits of an IPv6 address
+     * @param addressLow the last 64 bits of an IPv6 address, 0 for an IPv4 address
+     */
+    public ResourceRecord(DNSNode node, long ttl, long addressHigh, long addressLow, int recordLength) {
+        this(node, toExpirationTime(ttl), false, null, true, addressHigh, addressLow, recordLength);
+    }
+
+    /**
+     * CONSTRUCTOR: negative ResourceRecord Object, which records that a query has no results, either because the host
+     * name does not exist (NXDOMAIN) or because it has no records of the type (NODATA)
+     * @param node host name and record type of the query that has no results
+     * @param ttl how long the absence of results may be cached
+     * @param nameError true if the host name does not exist, false if it only has no records of the type
+     */
+    public ResourceRecord(DNSNode node, long ttl, boolean nameError) {
+        this(node, toExpirationTime(ttl), true, nameError ? NAME_ERROR : NO_DATA, false, 0, 0, 0);
+    }
+
+    private ResourceRecord(DNSNode node, long expirationTime, boolean negative, String textResult,
+                           boolean address, long addressHigh, long addressLow, int recordLength) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.negative = negative;
         this.textResult = textResult;
-        this.inetResult = null;
+        this.address = address;
+        this.addressHigh = addressHigh;
+        this.addressLow = addressLow;
         this.recordLength = recordLength;
     }
 
+    /**
+     * recreates an A or AAAA record from its packed form, e.g., as stored in the cache
+     * @param node host name and record type of the resource record
+     * @param expirationTime time at which the record expires, in System.nanoTime() units
+     * @param addressHigh an IPv4 address in its low 32 bits, or the first 64 bits of an IPv6 address
+     * @param addressLow the last 64 bits of an IPv6 address, 0 for an IPv4 address
+     * @return the record
+     */
+    static ResourceRecord ofAddress(DNSNode node, long expirationTime, long addressHigh, long addressLow) {
+        return new ResourceRecord(node, expirationTime, false, null, true, addressHigh, addressLow, 0);
+    }
+
+    /**
+     * recreates a record whose result is text, or a negative record, e.g., as read from a snapshot of the cache
+     * @param node host name and record type of the resource record
+     * @param expirationTime time at which the record expires, in System.nanoTime() units
+     * @param textResult the result of the record, NAME_ERROR or NO_DATA for a negative record
+     * @param negative true if this is a negative record
+     * @return the record
+     */
+    static ResourceRecord ofText(DNSNode node, long expirationTime, String textResult, boolean negative) {
+        return new ResourceRecord(node, expirationTime, negative, textResult, false, 0, 0, 0);
+    }
+
+    /**
+     * @param node host name and record type of the copy
+     * @return a record with the same result and expiration as this one, for another node, e.g., the result of the
+     *         target of a CNAME record attributed to the alias
+     */
+    public ResourceRecord copyFor(DNSNode node) {
+        return new ResourceRecord(node, expirationTime, negative, textResult, address, addressHigh, addressLow, recordLength);
+    }
+
+    /**
+     * @param expirationTime time at which the copy expires, in System.nanoTime() units
+     * @return a record with the same node and result as this one, expiring at another time, e.g., an expired record
+     *         served again for a short while
+     */
+    ResourceRecord withExpirationTime(long expirationTime) {
+        return new ResourceRecord(node, expirationTime, negative, textResult, address, addressHigh, addressLow, recordLength);
+    }
+
+    private static long toExpirationTime(long ttl) {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
+    }
+
     /** The TTL for this record. It is returned based on the (ceiling of the) number of seconds
      * remaining until this record expires. The TTL returned by this method will only match the
      * TTL obtained from the DNS server in the first second from the time this record was
@@ -58,7 +166,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.nanoTime() + 999999999) / 1000000000;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -68,7 +176,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime - System.nanoTime() > 0;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -80,11 +188,84 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime - record.expirationTime < 0;
     }
 
+    /** @return The time at which this record expires, in System.nanoTime() units. */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /** Returns true if this record states that its node has no results, rather than being a result itself.
+     *
+     * @return true if this is a negative (NXDOMAIN or NODATA) record, and false otherwise.
+     */
+    public boolean isNegative() {
+        return negative;
+    }
+
+    /** Returns the result of this record as text: a host name for CNAME and NS records, or an IP
+     * address for A and AAAA records, which is only formatted when first needed.
+     *
+     * @return The result as text, e.g. "a.gtld-servers.net" or "192.0.2.1".
+     */
     public String getTextResult() {
-        return textResult;
+        String result = textResult;
+        if (result == null) {
+            result = formatAddress();
+            textResult = result;
+        }
+        return result;
+    }
+
+    /** @return true if the result of this record is an IP address held in packed form. */
+    public boolean isAddress() {
+        return address;
+    }
+
+    /** @return An IPv4 address in the low 32 bits, or the first 64 bits of an IPv6 address. */
+    public long getAddressHigh() {
+        return addressHigh;
+    }
+
+    /** @return The last 64 bits of an IPv6 address, 0 for an IPv4 address. */
+    public long getAddressLow() {
+        return addressLow;
+    }
+
+    /** Returns the result of an A or AAAA record as an InetAddress, built from the bits of the
+     * address, without any lookup.
+     *
+     * @return The address, or null if this record does not hold an address.
+     */
+    public InetAddress getInetResult() {
+        if (!address) return null;
+        byte[] bytes = node.getType() == RecordType.AAAA ?
+                ByteBuffer.allocate(16).putLong(addressHigh).putLong(addressLow).array() :
+                ByteBuffer.allocate(4).putInt((int) addressHigh).array();
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;   // only thrown for addresses of an invalid length
+        }
+    }
+
+    private String formatAddress() {
+        StringBuilder text = new StringBuilder(39);
+        if (node.getType() == RecordType.AAAA) {
+            // eight groups of 16 bits, e.g. "2001:db8:0:0:0:0:0:1"
+            for (int i = 0; i < 8; i++) {
+                if (i > 0) text.append(':');
+                long half = i < 4 ? addressHigh : addressLow;
+                text.append(Long.toHexString((half >>> (16 * (3 - i % 4))) & 0xFFFF));
+            }
+        } else {
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) text.append('.');
+                text.append((addressHigh >>> (8 * (3 - i))) & 0xFF);
+            }
+        }
+        return text.toString();
     }
 
     public int getRecordLength() {
@@ -103,10 +284,6 @@ public class ResourceRecord implements Serializable {
         return node.getType().getCode();
     }
 
-    public void changeHostName(String newHostName){
-        this.node.changeHostName(newHostName);
-    }
-
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -115,14 +292,17 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (negative != record.negative) return false;
+        if (address != record.address) return false;
+        if (address)
+            return addressHigh == record.addressHigh && addressLow == record.addressLow;
+        return textResult.equals(record.textResult);
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + (address ? Long.hashCode(addressHigh) ^ Long.hashCode(addressLow) : textResult.hashCode());
         return result;
     }
 
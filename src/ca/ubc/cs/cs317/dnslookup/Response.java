@@ -1,29 +1,43 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
  * Created by evanmartin on 2017-11-03.
+ *
+ * A response is a read-only view over the raw bytes of a DNS message. Constructing it only walks the message once to
+ * find where each record starts, without decoding anything. Header fields and the fields of each record are then read
+ * straight from the bytes when asked for, names are only decoded (or compared in place) when needed, and a
+ * ResourceRecord is only created for the records a caller actually asks for. Records are addressed by section and by
+ * their index within the section.
  */
 public class Response {
     // some indexes and lengths
     private static final int HEADER_LENGTH = 12;
-    private static final int ANSCOUNT_START_INDEX = 6;
-    private static final int NSCOUNT_START_INDEX = 8;
-    private static final int ARCOUNT_START_INDEX = 10;
-    private static final int QUERY_RESOURCE_COUNT_LENGTH = 2;
-    private static final int QUESTION_START_INDEX = HEADER_LENGTH;
-
-    // authoritative bit
-    private static final byte[] AA_BIT = {1};
-
-    // queryID to match a response to a query
-    private int queryID;
-    private int replyCode;
-    private int ans_count;
-    private int ns_count;
-    private int ar_count;
-    private boolean authoritative = false;
+    private static final int ID_INDEX = 0;
+    private static final int FLAGS_INDEX = 2;
+    private static final int QDCOUNT_INDEX = 4;
+    private static final int ANCOUNT_INDEX = 6;
+    private static final int NSCOUNT_INDEX = 8;
+    private static final int ARCOUNT_INDEX = 10;
+    private static final int QUESTION_FIXED_LENGTH = 4;     // TYPE and CLASS of a question
+    private static final int MIN_RECORD_LENGTH = 11;        // root name, TYPE, CLASS, TTL and RDLENGTH
+
+    // flags
+    private static final int AA_MASK = 0x0400;
+    private static final int TC_MASK = 0x0200;
+    private static final int RCODE_MASK = 0x000F;
+
+    // message compression
+    private static final int POINTER_MASK = 0xC0;
+    private static final int POINTER_OFFSET_MASK = 0x3FFF;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    // sections
+    public static final int ANSWER_SECTION = 0;
+    public static final int NAMESERVER_SECTION = 1;
+    public static final int ADDITIONAL_SECTION = 2;
 
     // response codes
     public static final int RCODE_NO_ERROR = 0;
@@ -33,236 +47,357 @@ public class Response {
     public static final int RCODE_NOT_IMPLEMENTED_ERROR = 4;
     public static final int RCODE_REFUSED_ERROR = 5;
 
-    // message compression
-    private static final byte[] MESSAGE_COMPRESSION = {1, 1};
+    // names are decoded into a buffer reused by each thread, so decoding one only allocates the resulting String
+    private static final ThreadLocal<char[]> NAME_BUFFER = ThreadLocal.withInitial(() -> new char[MAX_NAME_LENGTH]);
 
-    ArrayList<ResourceRecord> answers = new ArrayList();
-    ArrayList<ResourceRecord> servers = new ArrayList();
-    ArrayList<ResourceRecord> additionals = new ArrayList();
+    private final ByteBuffer bytes;
+    private final int[] sectionStarts = new int[4];  // index of the first record of each section, then the record count
+    private final int[] nameOffsets;                 // offset of the owner name of each record
+    private final int[] fieldOffsets;                // offset of the TYPE field of each record, right after its name
+    private final int questionType;                  // TYPE of the first question, or -1 if there is none
 
     /**
      * CONSTRUCTOR: Response Object
      * @param responseBytes raw data from the response
      */
-    public Response(byte[] responseBytes){
-        queryID = parseByteToInt(responseBytes, 0, 2);      // query transaction ID that invoked this response
-        authoritative = (checkBit(responseBytes[2], 5, AA_BIT)); // T/F authoritative bit of the response
-        replyCode = parseBitsToInt(responseBytes[3], 4, 4); // reply code for error checking
-        ans_count = parseByteToInt(responseBytes, ANSCOUNT_START_INDEX, QUERY_RESOURCE_COUNT_LENGTH);
-        ns_count = parseByteToInt(responseBytes, NSCOUNT_START_INDEX, QUERY_RESOURCE_COUNT_LENGTH);
-        ar_count = parseByteToInt(responseBytes, ARCOUNT_START_INDEX, QUERY_RESOURCE_COUNT_LENGTH);
-
-        // get the start index of the ANSWER section (this is either before ANSWER section or before the NAMESERVER section)
-        int questionEndIndex = QUESTION_START_INDEX + getNameLength(responseBytes, QUESTION_START_INDEX);
-
-        // get the answers
-        int answerStartIndex = questionEndIndex + 4;
-        for (int i = 0; i < ans_count; i++) {
-            ResourceRecord record = getResourceRecord(responseBytes, answerStartIndex);
-            answers.add(record);
-            answerStartIndex += record.getRecordLength();
-        }
+    public Response(byte[] responseBytes) {
+        this(ByteBuffer.wrap(responseBytes));
+    }
 
-        // get the name servers
-        int serverStartIndex = answerStartIndex;
-        for (int i = 0; i < ns_count; i++) {
-            ResourceRecord record = getResourceRecord(responseBytes, serverStartIndex);
-            servers.add(record);
-            serverStartIndex += record.getRecordLength();
+    /**
+     * CONSTRUCTOR: Response Object
+     * @param responseBytes raw data from the response, between its position and its limit, which must not change while
+     *                      the response is in use
+     * @throws IndexOutOfBoundsException if the records of the response extend past its end, unless the response is
+     *                                   truncated, in which case only the records that fit are kept
+     * @throws IllegalArgumentException if the response is malformed
+     */
+    public Response(ByteBuffer responseBytes) {
+        bytes = responseBytes.slice();
+        int questionCount = getUnsignedShort(QDCOUNT_INDEX);
+        sectionStarts[NAMESERVER_SECTION] = getUnsignedShort(ANCOUNT_INDEX);
+        sectionStarts[ADDITIONAL_SECTION] = sectionStarts[NAMESERVER_SECTION] + getUnsignedShort(NSCOUNT_INDEX);
+        sectionStarts[3] = sectionStarts[ADDITIONAL_SECTION] + getUnsignedShort(ARCOUNT_INDEX);
+        int maxRecords = (bytes.limit() - HEADER_LENGTH) / MIN_RECORD_LENGTH;
+        if (sectionStarts[3] > maxRecords && !isTruncated())
+            throw new IllegalArgumentException("Record counts exceed the length of the response");
+        nameOffsets = new int[Math.min(sectionStarts[3], Math.max(0, maxRecords))];
+        fieldOffsets = new int[nameOffsets.length];
+
+        // skip the question section
+        int i = HEADER_LENGTH;
+        int type = -1;
+        for (int j = 0; j < questionCount; j++) {
+            i = skipName(i);
+            if (j == 0) type = getUnsignedShort(i);
+            i += QUESTION_FIXED_LENGTH;
         }
-
-        // get the additional records
-        int additionalStartIndex = serverStartIndex;
-        for (int i = 0; i < ar_count; i++) {
-            ResourceRecord record = getResourceRecord(responseBytes, additionalStartIndex);
-            additionals.add(record);
-            additionalStartIndex += record.getRecordLength();
+        questionType = type;
+
+        // find where each record starts, the records themselves are only decoded when asked for
+        for (int r = 0; r < sectionStarts[3]; r++) {
+            try {
+                if (r == nameOffsets.length)
+                    throw new IndexOutOfBoundsException("More records than fit in the response");
+                nameOffsets[r] = i;
+                fieldOffsets[r] = skipName(i);
+                i = fieldOffsets[r] + ResourceRecord.RDATA_NAMELENGTH_OFFSET + getRDataLength(fieldOffsets[r]);
+                if (i > bytes.limit())
+                    throw new IndexOutOfBoundsException("Record extends past the end of the response");
+            } catch (IndexOutOfBoundsException e) {
+                if (!isTruncated()) throw e;
+                // a truncated response only holds the records that fit, the sections end with the last of them
+                for (int section = NAMESERVER_SECTION; section <= 3; section++)
+                    sectionStarts[section] = Math.min(sectionStarts[section], r);
+            }
         }
     }
 
-    /**
-     * parses the response bytes from raw response data and returns a ResourceRecord Object
-     * @param responseBytes raw data to be parsed
-     * @param startIndex starting index of the resource record data in the responseBytes
-     * @return ResourceRecord Object that can be queried for useful information
-     */
-    public static ResourceRecord getResourceRecord(byte[] responseBytes, int startIndex){
-        String name = parseName(responseBytes, startIndex);
-        int nameLength = getNameLength(responseBytes, startIndex);
-        int type_code = parseByteToInt(responseBytes, startIndex+nameLength+ResourceRecord.TYPE_NAMELENGTH_OFFSET, ResourceRecord.TYPE_LENGTH);
-        int cl = parseByteToInt(responseBytes, startIndex+nameLength+ResourceRecord.CLASS_NAMELENGTH_OFFSET, ResourceRecord.CLASS_LENGTH);
-        int ttl = parseByteToInt(responseBytes, startIndex+nameLength+ResourceRecord.TTL_NAMELENGTH_OFFSET, ResourceRecord.TTL_LENGTH);
-        int rdlength = parseByteToInt(responseBytes, startIndex+nameLength+ResourceRecord.RDLENGTH_NAMELENGTH_OFFSET, ResourceRecord.RDLENGTH_LENGTH);
-        String textResult = parseRData(responseBytes, startIndex+nameLength+ResourceRecord.RDATA_NAMELENGTH_OFFSET, type_code, cl);
-        RecordType recordType = RecordType.getByCode(type_code);
-        int recordLength = nameLength + 10 + rdlength;
-
-        return new ResourceRecord(name, recordType, ttl, textResult, recordLength);
+    public int getID() {
+        return getUnsignedShort(ID_INDEX);
+    }
+
+    public int getRcode(){
+        return getUnsignedShort(FLAGS_INDEX) & RCODE_MASK;
     }
 
     /**
-     * parse the name of the resource record
-     * @param responseBytes raw data from the response
-     * @param i index to start parsing from
-     * @return the name of the resource record, e.g. 'ca', 'com', 'org', etc.
+     * @return the type code of the question the response answers, or -1 if the response has no question section
      */
-    public static String parseName(byte[] responseBytes, int i){
-        ArrayList<String> labels = new ArrayList<>();
-
-        if (responseBytes[i] == 0){
-            return null;
-        }
+    public int getQuestionType() {
+        return questionType;
+    }
 
-        while(responseBytes[i] != 0){
-            if(checkBit(responseBytes[i], 0, MESSAGE_COMPRESSION)){
-                int offset = parseByteToInt(responseBytes, i, 2) - 49152;
-                labels.add(parseName(responseBytes, offset));
-                break;
-            } else{
-                int labelLength = parseByteToInt(responseBytes, i, 1);
-                labels.add(new String(responseBytes, i+1, labelLength));
-                i += 1 + labelLength;
-            }
-        }
-        return joinStringArrayList(labels, ".");
+    public boolean getAuth() {
+        return (getUnsignedShort(FLAGS_INDEX) & AA_MASK) != 0;
     }
 
     /**
-     * parses the responseBytes for the names of the next node
-     * @param responseBytes raw data to parse
-     * @param i index to start parsing
-     * @param type_code record type code of the resource record
-     * @param cl class
-     * @return name of the next node
+     * @return true if the TC bit is set, i.e., the response did not fit in a UDP datagram and some of its records were
+     *         left out, in which case the query should be sent again over TCP
      */
-    private static String parseRData(byte[] responseBytes, int i, int type_code, int cl) {
-        if (type_code == ResourceRecord.TYPE_A && cl == ResourceRecord.CLASS_IP) {
-            return parseIPv4(responseBytes, i);
-        } else if ((type_code == ResourceRecord.TYPE_NS || type_code == ResourceRecord.TYPE_CNAME) && cl == ResourceRecord.CLASS_IP) {
-            return parseName(responseBytes, i);
-        } else if (type_code == ResourceRecord.TYPE_AAAA && cl == ResourceRecord.CLASS_IP) {
-            return parseIPv6(responseBytes, i);
-        }
-        return "";
+    public boolean isTruncated() {
+        return (getUnsignedShort(FLAGS_INDEX) & TC_MASK) != 0;
     }
 
     /**
-     * parse an IPv4 address
-     * @param bytes raw data to parse the IP address from
-     * @param i index to start parsing from
-     * @return IPv4 address as a String in the form: "X.X.X.X"
+     * @param section ANSWER_SECTION, NAMESERVER_SECTION or ADDITIONAL_SECTION
+     * @return number of records in the section
      */
-    private static String parseIPv4(byte[] bytes, int i) {
-        ArrayList<String> fields = new ArrayList<String>();
-
-        for (int j = 0; j < 4; j++) {
-            fields.add(Integer.toString(parseByteToInt(bytes, i+j, 1)));
-        }
+    public int getRecordCount(int section) {
+        return sectionStarts[section + 1] - sectionStarts[section];
+    }
 
-        return joinStringArrayList(fields, ".");
+    /**
+     * @param section section of the record
+     * @param index index of the record within its section
+     * @return the record type code of the record, e.g. 1 for A records
+     */
+    public int getRecordType(int section, int index) {
+        return getUnsignedShort(fieldOffsets[getRecordIndex(section, index)] + ResourceRecord.TYPE_NAMELENGTH_OFFSET);
     }
 
     /**
-     * parse an IPv6 address
-     * @param bytes raw data to parse the IP address from
-     * @param i index to start parsing from
-     * @return IPv6 address as a String in the form: "X:X:X:X:X:X:X:X"
+     * @param section section of the record
+     * @param index index of the record within its section
+     * @return the owner name of the record, e.g. "www.google.com"
      */
-    private static String parseIPv6(byte[] bytes, int i) {
-        ArrayList<String> fields = new ArrayList<String>();
+    public String getRecordName(int section, int index) {
+        return decodeName(nameOffsets[getRecordIndex(section, index)]);
+    }
 
-        for (int j = 0; j < 8; j++) {
-            fields.add(Integer.toString(parseByteToInt(bytes, i+(j*2), 2), 16));
-        }
+    /**
+     * compares the owner name of a record with a host name, ignoring case, without decoding the owner name
+     * @param section section of the record
+     * @param index index of the record within its section
+     * @param hostName host name to compare with, e.g. "www.google.com"
+     * @return true if the owner name of the record is the host name
+     */
+    public boolean recordNameEquals(int section, int index, String hostName) {
+        return nameEquals(nameOffsets[getRecordIndex(section, index)], hostName);
+    }
 
-        return joinStringArrayList(fields, ":");
+    /**
+     * decodes a record
+     * @param section section of the record
+     * @param index index of the record within its section
+     * @return ResourceRecord Object that can be queried for useful information
+     */
+    public ResourceRecord getRecord(int section, int index) {
+        int r = getRecordIndex(section, index);
+        int fields = fieldOffsets[r];
+        int typeCode = getUnsignedShort(fields + ResourceRecord.TYPE_NAMELENGTH_OFFSET);
+        int cl = getUnsignedShort(fields + ResourceRecord.CLASS_NAMELENGTH_OFFSET);
+        int rdlength = getRDataLength(fields);
+        int rdata = fields + ResourceRecord.RDATA_NAMELENGTH_OFFSET;
+        int recordLength = fields - nameOffsets[r] + ResourceRecord.RDATA_NAMELENGTH_OFFSET + rdlength;
+        DNSNode node = new DNSNode(decodeName(nameOffsets[r]), RecordType.getByCode(typeCode));
+
+        // addresses are kept as their bits, they are only formatted as text if printed
+        if (cl == ResourceRecord.CLASS_IP && typeCode == ResourceRecord.TYPE_A && rdlength == 4)
+            return new ResourceRecord(node, getTTL(fields), getUnsignedInt(rdata), 0, recordLength);
+        if (cl == ResourceRecord.CLASS_IP && typeCode == ResourceRecord.TYPE_AAAA && rdlength == 16)
+            return new ResourceRecord(node, getTTL(fields), bytes.getLong(rdata), bytes.getLong(rdata + 8), recordLength);
+
+        return new ResourceRecord(node, getTTL(fields), parseRData(rdata, typeCode, cl), recordLength);
     }
 
-    private static int getNameLength(byte[] responseData, int i) {
-        int length = 0;
-        while (true) {
-            int labelLength = parseByteToInt(responseData, i, 1);
+    /**
+     * @param section ANSWER_SECTION, NAMESERVER_SECTION or ADDITIONAL_SECTION
+     * @return a new list with every record of the section decoded
+     */
+    public ArrayList<ResourceRecord> getRecords(int section) {
+        ArrayList<ResourceRecord> records = new ArrayList<>(getRecordCount(section));
+        for (int i = 0; i < getRecordCount(section); i++)
+            records.add(getRecord(section, i));
+        return records;
+    }
 
-            if (labelLength == 0) {
-                return length + 1;
-            }
+    public ArrayList<ResourceRecord> getAnswers() {
+        return getRecords(ANSWER_SECTION);
+    }
 
-            if (checkBit(responseData[i], 0, MESSAGE_COMPRESSION)) {
-                return length + 2;
-            }
+    public ArrayList<ResourceRecord> getServers() {
+        return getRecords(NAMESERVER_SECTION);
+    }
 
-            length += 1 + labelLength;
-            i += 1 + labelLength;
-        }
+    public ArrayList<ResourceRecord> getAdditionals() {
+        return getRecords(ADDITIONAL_SECTION);
     }
 
-    private static boolean checkBit(byte b, int i, byte[] bits) {
-        for (int j = 0; j < bits.length; j++) {
-            if (getBit(b, i+j) != bits[j]) {
-                return false;
-            }
+    /**
+     * finds how long the absence of an answer in this response may be cached (RFC 2308), which is the smaller of the TTL
+     * of the SOA record in the nameserver section and the MINIMUM field of that record
+     * @return the negative caching TTL in seconds, or -1 if there is no SOA record to derive it from
+     */
+    public long getNegativeTTL() {
+        for (int i = 0; i < getRecordCount(NAMESERVER_SECTION); i++) {
+            int fields = fieldOffsets[getRecordIndex(NAMESERVER_SECTION, i)];
+            if (getUnsignedShort(fields + ResourceRecord.TYPE_NAMELENGTH_OFFSET) != ResourceRecord.TYPE_SOA ||
+                    getUnsignedShort(fields + ResourceRecord.CLASS_NAMELENGTH_OFFSET) != ResourceRecord.CLASS_IP)
+                continue;
+
+            // MINIMUM is the last field of the SOA data
+            int rdata = fields + ResourceRecord.RDATA_NAMELENGTH_OFFSET;
+            int minimumIndex = rdata + getRDataLength(fields) - 4;
+            if (minimumIndex < skipName(skipName(rdata))) continue;
+            return Math.min(getTTL(fields), getUnsignedInt(minimumIndex));
         }
+        return -1;
+    }
 
-        return true;
+    /**
+     * @return the index of a record among all the records of the response
+     */
+    private int getRecordIndex(int section, int index) {
+        if (index < 0 || index >= getRecordCount(section))
+            throw new IndexOutOfBoundsException("Record " + index + " of section " + section);
+        return sectionStarts[section] + index;
     }
 
-    private static int parseBitsToInt(byte b, int i, int l) {
-        int value = 0;
-        for (int j = 0; j < l; j++) {
-            value += getBit(b, (i+j)) * Math.pow(2, l-j-1);
-        }
-        return value;
+    /**
+     * parses the TTL of a record, values with the most significant bit set are treated as zero (RFC 2181)
+     * @param fields index of the TYPE field of the record
+     * @return the TTL in seconds
+     */
+    private long getTTL(int fields) {
+        return Math.max(0, bytes.getInt(fields + ResourceRecord.TTL_NAMELENGTH_OFFSET));
     }
 
-    public static int parseByteToInt(byte[] bytes, int i, int l) {
-        int value = 0;
+    private int getRDataLength(int fields) {
+        return getUnsignedShort(fields + ResourceRecord.RDLENGTH_NAMELENGTH_OFFSET);
+    }
 
-        for (int j = 0; j < l; j++) {
-            value += parseByteToUnsignedInt(bytes[i+j]) * Math.pow(256, l-j-1);
+    /**
+     * parses the data of a record other than an address into its textual form
+     * @param i index of the data
+     * @param typeCode record type code of the resource record
+     * @param cl class
+     * @return the data as text, or "" if the record type is not supported
+     */
+    private String parseRData(int i, int typeCode, int cl) {
+        if (cl != ResourceRecord.CLASS_IP) return "";
+        switch (typeCode) {
+            case ResourceRecord.TYPE_NS:
+            case ResourceRecord.TYPE_CNAME:
+                return decodeName(i);
+            case ResourceRecord.TYPE_SOA:
+                return parseSOA(i);
+            default:
+                return "";
         }
-
-        return value;
     }
 
-    public static int parseByteToUnsignedInt(byte b) {
-        return b & 0xFF;
+    /**
+     * parse the data of an SOA record
+     * @param i index to start parsing from
+     * @return SOA fields in the form: "MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM"
+     */
+    private String parseSOA(int i) {
+        StringBuilder soa = new StringBuilder(64);
+
+        // primary nameserver and mailbox of the zone
+        soa.append(decodeName(i));
+        i = skipName(i);
+        soa.append(' ').append(decodeName(i));
+        i = skipName(i);
+
+        // serial, refresh, retry, expire and minimum, all unsigned 32-bit values
+        for (int j = 0; j < 5; j++) {
+            soa.append(' ').append(getUnsignedInt(i));
+            i += 4;
+        }
+
+        return soa.toString();
     }
 
-    private static int getBit(byte b, int i) {
-        return (b >> (7-i)) & 1;
+    /**
+     * @param i index of a name
+     * @return index of the first byte after the name, a compressed name ends with its pointer
+     */
+    private int skipName(int i) {
+        while (true) {
+            int labelLength = getUnsignedByte(i);
+            if (labelLength == 0) return i + 1;
+            if ((labelLength & POINTER_MASK) == POINTER_MASK) return i + 2;
+            i += 1 + labelLength;
+        }
     }
 
-    public static String joinStringArrayList(ArrayList<String> strings, String sep) {
-        String str = strings.get(0);
+    /**
+     * parse a name, following compression pointers
+     * @param i index to start parsing from
+     * @return the name, e.g. 'ca', 'com', 'www.google.com', or "" for the root
+     */
+    private String decodeName(int i) {
+        char[] name = NAME_BUFFER.get();
+        int length = 0;
+        while (true) {
+            int labelLength = getUnsignedByte(i);
+            if ((labelLength & POINTER_MASK) == POINTER_MASK) {
+                i = followPointer(i);
+                continue;
+            }
+            if (labelLength == 0) return new String(name, 0, length);
 
-        for (int i = 1; i < strings.size(); i++) {
-            str += sep + strings.get(i);
+            if (length > 0) name[length++] = '.';
+            if (length + labelLength > MAX_NAME_LENGTH)
+                throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " characters");
+            for (int j = 1; j <= labelLength; j++)
+                name[length++] = (char) getUnsignedByte(i + j);
+            i += 1 + labelLength;
         }
-
-        return str;
     }
 
-    public int getID() {
-        return queryID;
+    /**
+     * compares a name with a host name, ignoring case, following compression pointers
+     * @param i index of the name
+     * @param hostName host name to compare with
+     * @return true if the name is the host name
+     */
+    private boolean nameEquals(int i, String hostName) {
+        int position = 0;
+        while (true) {
+            int labelLength = getUnsignedByte(i);
+            if ((labelLength & POINTER_MASK) == POINTER_MASK) {
+                i = followPointer(i);
+                continue;
+            }
+            if (labelLength == 0) return position == hostName.length();
+
+            if (position > 0 && (position >= hostName.length() || hostName.charAt(position++) != '.')) return false;
+            if (position + labelLength > hostName.length()) return false;
+            for (int j = 1; j <= labelLength; j++)
+                if (Character.toLowerCase((char) getUnsignedByte(i + j)) != Character.toLowerCase(hostName.charAt(position++)))
+                    return false;
+            i += 1 + labelLength;
+        }
     }
 
-    public int getRcode(){
-        return replyCode;
+    /**
+     * @param i index of a compression pointer
+     * @return index the pointer points to, which must be before the pointer so that names cannot loop
+     */
+    private int followPointer(int i) {
+        int target = getUnsignedShort(i) & POINTER_OFFSET_MASK;
+        if (target >= i)
+            throw new IllegalArgumentException("Compression pointer at " + i + " does not point backwards");
+        return target;
     }
 
-    public boolean getAuth() {
-        return authoritative;
+    private int getUnsignedByte(int i) {
+        return parseByteToUnsignedInt(bytes.get(i));
     }
 
-    public ArrayList<ResourceRecord> getAnswers() {
-        return answers;
+    private int getUnsignedShort(int i) {
+        return bytes.getShort(i) & 0xFFFF;
     }
 
-    public ArrayList<ResourceRecord> getServers() {
-        return servers;
+    private long getUnsignedInt(int i) {
+        return bytes.getInt(i) & 0xFFFFFFFFL;
     }
 
-    public ArrayList<ResourceRecord> getAdditionals() {
-        return additionals;
+    public static int parseByteToUnsignedInt(byte b) {
+        return b & 0xFF;
     }
 }
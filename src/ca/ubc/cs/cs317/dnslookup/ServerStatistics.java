@@ -0,0 +1,157 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** This class keeps track of how fast each nameserver answers, and uses it to pick which of
+ * several equivalent nameservers to query and how long to wait for it. Round-trip times are
+ * smoothed the same way TCP (and resolvers such as BIND and Unbound) do: a smoothed round-trip
+ * time (SRTT) and its mean deviation (RTTVAR) are updated with every response, and the timeout
+ * for a server is SRTT + 4 * RTTVAR. A timeout doubles the timeout used for the server next
+ * time, without touching SRTT and RTTVAR, which only ever see actual round-trip times; the
+ * backoff is cleared by the next response from the server, as Unbound does. Statistics for a
+ * server are forgotten once they have not been updated for a while, so that a server that was
+ * down gets a fresh chance. Servers that do not support EDNS are remembered for as long, after
+ * which they are sent an OPT record again in case they were upgraded.
+ */
+public class ServerStatistics {
+
+    private static final long INITIAL_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+    private static final long MIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(5000);
+    // servers never queried get a small random SRTT, so they are tried before any server known to be slower
+    private static final long UNKNOWN_RTT_JITTER_NANOS = TimeUnit.MILLISECONDS.toNanos(30);
+    private static final long EXPIRATION_NANOS = TimeUnit.MINUTES.toNanos(15);
+
+    private final Map<InetAddress, Estimate> estimates = new ConcurrentHashMap<>();
+    // when each server known not to support EDNS last answered FORMERR to a query with an OPT record
+    private final Map<InetAddress, Long> noEdnsServers = new ConcurrentHashMap<>();
+
+    /**
+     * records the round-trip time of a response from a server
+     * @param server the server that sent the response
+     * @param rttNanos time elapsed between sending the query and receiving the response
+     */
+    public void recordResponse(InetAddress server, long rttNanos) {
+        estimates.compute(server, (address, estimate) -> {
+            if (estimate == null || estimate.isExpired() || estimate.srtt < 0)
+                return new Estimate(rttNanos, rttNanos / 2, 0);
+            long rttvar = (3 * estimate.rttvar + Math.abs(estimate.srtt - rttNanos)) / 4;
+            long srtt = (7 * estimate.srtt + rttNanos) / 8;
+            return new Estimate(srtt, rttvar, 0);
+        });
+    }
+
+    /**
+     * records that a server did not respond in time, which doubles the timeout used for it
+     * @param server the server that did not respond
+     */
+    public void recordTimeout(InetAddress server) {
+        estimates.compute(server, (address, estimate) -> {
+            if (estimate == null || estimate.isExpired())
+                return new Estimate(-1, 0, Math.min(2 * INITIAL_TIMEOUT_NANOS, MAX_TIMEOUT_NANOS));
+            long backoff = Math.min(2 * estimate.getTimeout(), MAX_TIMEOUT_NANOS);
+            return new Estimate(estimate.srtt, estimate.rttvar, backoff);
+        });
+    }
+
+    /**
+     * records that a server answered FORMERR to a query with an OPT record, so that it is only sent
+     * queries without one for a while
+     * @param server the server that does not support EDNS
+     */
+    public void recordNoEdns(InetAddress server) {
+        noEdnsServers.put(server, System.nanoTime());
+    }
+
+    /**
+     * @param server a nameserver
+     * @return false if the server was recently found not to support EDNS, true otherwise
+     */
+    public boolean supportsEdns(InetAddress server) {
+        Long recordTime = noEdnsServers.get(server);
+        if (recordTime == null)
+            return true;
+        if (System.nanoTime() - recordTime <= EXPIRATION_NANOS)
+            return false;
+        noEdnsServers.remove(server, recordTime);
+        return true;
+    }
+
+    /**
+     * @param server a nameserver
+     * @return how long to wait for a response from the server, in milliseconds
+     */
+    public long getTimeoutMillis(InetAddress server) {
+        Estimate estimate = estimates.get(server);
+        long timeout = (estimate == null || estimate.isExpired()) ? INITIAL_TIMEOUT_NANOS : estimate.getTimeout();
+        return TimeUnit.NANOSECONDS.toMillis(timeout);
+    }
+
+    /**
+     * @param server a nameserver
+     * @return the smoothed round-trip time of the server in nanoseconds, or -1 if it is not known
+     */
+    public long getSmoothedRtt(InetAddress server) {
+        Estimate estimate = estimates.get(server);
+        return (estimate == null || estimate.isExpired()) ? -1 : estimate.srtt;
+    }
+
+    /**
+     * @return how long the server is expected to take to answer, in nanoseconds: its backed-off timeout if it
+     *         timed out since its last response, its SRTT otherwise, or -1 if neither is known
+     */
+    private long getExpectedRtt(InetAddress server) {
+        Estimate estimate = estimates.get(server);
+        if (estimate == null || estimate.isExpired())
+            return -1;
+        return estimate.backoffNanos > 0 ? estimate.backoffNanos : estimate.srtt;
+    }
+
+    /**
+     * orders equivalent servers (e.g., all the nameservers of a zone) from the one expected to
+     * answer first to the one expected to answer last
+     * @param servers the servers to be ordered
+     * @return a new list with the same servers, fastest first
+     */
+    public List<InetAddress> sortByRtt(Collection<InetAddress> servers) {
+        Map<InetAddress, Long> rtts = new HashMap<>();
+        for (InetAddress server : servers) {
+            long rtt = getExpectedRtt(server);
+            rtts.put(server, rtt >= 0 ? rtt : ThreadLocalRandom.current().nextLong(UNKNOWN_RTT_JITTER_NANOS));
+        }
+        List<InetAddress> sorted = new ArrayList<>(rtts.keySet());
+        sorted.sort(Comparator.comparing(rtts::get));
+        return sorted;
+    }
+
+    private static class Estimate {
+        // -1 until the first response of the server
+        private final long srtt;
+        private final long rttvar;
+        // timeout doubled by every timeout since the last response, or 0
+        private final long backoffNanos;
+        private final long updateTime = System.nanoTime();
+
+        private Estimate(long srtt, long rttvar, long backoffNanos) {
+            this.srtt = srtt;
+            this.rttvar = rttvar;
+            this.backoffNanos = backoffNanos;
+        }
+
+        private long getTimeout() {
+            if (backoffNanos > 0)
+                return backoffNanos;
+            if (srtt < 0)
+                return INITIAL_TIMEOUT_NANOS;
+            return Math.max(MIN_TIMEOUT_NANOS, Math.min(MAX_TIMEOUT_NANOS, srtt + 4 * rttvar));
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - updateTime > EXPIRATION_NANOS;
+        }
+    }
+}
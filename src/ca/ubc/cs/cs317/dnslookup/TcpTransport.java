@@ -0,0 +1,309 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/** This class sends DNS queries over TCP, for responses that do not fit in a UDP datagram (see
+ * RFC 7766). Every message is preceded by its length as a two-byte integer.
+ *
+ * A single persistent connection is kept open to each server, and queries to that server are
+ * pipelined on it: a query is written as soon as it is made, without waiting for the responses
+ * to earlier queries, and a reader thread per connection hands every response to the query with
+ * the same transaction ID, in whatever order the server answers them. Each connection assigns its
+ * own transaction IDs, so that queries sharing a connection never collide, and restores the ID of
+ * the original query in its response.
+ *
+ * A connection is closed once it has had no outstanding query for a while. If the connection is
+ * closed or fails while queries are outstanding (e.g., the server closed it as idle just as a
+ * query was written), those queries are sent again, once, on a new connection. A server that
+ * stalls in the middle of a response, or lets a query time out without sending anything since,
+ * is considered dead instead: its connection is closed and the queries outstanding on it fail.
+ */
+public class TcpTransport implements Closeable {
+
+    // how long a connection without outstanding queries is kept open
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // how long a read may block before the state of the connection is checked again, and how long
+    // a server may pause in the middle of a response
+    private static final int READ_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_PENDING_QUERIES = 0x10000;
+
+    private final Executor executor;
+    private final int port;
+    private final Map<InetAddress, Connection> connections = new ConcurrentHashMap<>();
+    // connections are opened, and their responses read, on threads of their own
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dns-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean closed = false;
+
+    /**
+     * CONSTRUCTOR: TcpTransport Object
+     * @param executor executor used to parse responses and complete the futures of their queries,
+     *                 so that no work dependent on a response is run on the reader thread of a connection
+     * @param port port every server listens on, usually 53
+     */
+    public TcpTransport(Executor executor, int port) {
+        this.executor = executor;
+        this.port = port;
+    }
+
+    /**
+     * sends a query to a server over TCP at the port of the transport, on the connection to the server if one is open
+     * @param query the query, the transaction id of its response is the same as the id of the query
+     * @param server where we are sending the query to
+     * @param timeoutMillis time to wait for the connection to be opened and for the response
+     * @return a future completed with the response, or completed exceptionally with a
+     *         TimeoutException if no response arrives in time, or an IOException if the query could
+     *         not be sent
+     */
+    public CompletableFuture<Response> query(byte[] query, InetAddress server, long timeoutMillis) {
+        PendingQuery pendingQuery = new PendingQuery(query, server, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        pendingQuery.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        send(pendingQuery);
+        return pendingQuery.future;
+    }
+
+    /**
+     * sends a query on the connection to its server, opening a new connection if there is none
+     */
+    private void send(PendingQuery query) {
+        if (closed) {
+            query.future.completeExceptionally(new IOException("TCP transport is closed"));
+            return;
+        }
+        Connection connection = connections.computeIfAbsent(query.server, server -> new Connection(server, query.timeoutMillis));
+        connection.connected.whenComplete((ignored, ex) -> {
+            if (ex != null)
+                query.future.completeExceptionally(ex);
+            else
+                connection.send(query);
+        });
+    }
+
+    /**
+     * closes every connection, queries still waiting for their response fail
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections.values())
+            connection.close(new IOException("TCP transport is closed"), false);
+        connectionThreads.shutdownNow();
+    }
+
+    /** A persistent connection to a server, and the queries outstanding on it, by transaction ID.
+     */
+    private class Connection {
+        private final InetAddress server;
+        private final Socket socket = new Socket();
+        private final CompletableFuture<Void> connected = new CompletableFuture<>();
+        private final Map<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+        private volatile boolean open = true;
+        // set when a query times out on the connection, cleared by any response
+        private volatile boolean timedOut = false;
+        private DataOutputStream out;
+
+        private Connection(InetAddress server, int connectTimeoutMillis) {
+            this.server = server;
+            try {
+                connectionThreads.execute(() -> connect(connectTimeoutMillis));
+            } catch (RejectedExecutionException e) {
+                open = false;
+                connected.completeExceptionally(new IOException("TCP transport is closed"));
+            }
+        }
+
+        /**
+         * opens the connection, and then reads responses until the connection is closed
+         */
+        private void connect(int connectTimeoutMillis) {
+            DataInputStream in;
+            try {
+                socket.connect(new InetSocketAddress(server, port), connectTimeoutMillis);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                close(e, true);
+                return;
+            }
+            connected.complete(null);
+
+            byte[] header = new byte[2];
+            try {
+                while (read(in, header, true)) {
+                    byte[] responseBytes = new byte[(header[0] & 0xFF) << 8 | (header[1] & 0xFF)];
+                    read(in, responseBytes, false);
+                    receive(responseBytes);
+                }
+                close(null, true);
+            } catch (StalledServerException e) {
+                close(e, false);
+            } catch (IOException e) {
+                close(e, true);
+            }
+        }
+
+        /**
+         * fills the buffer from the connection, giving up if the connection has had no outstanding
+         * query for IDLE_TIMEOUT_NANOS, or if the server stalls
+         * @return false if the connection has been idle for too long, true once the buffer is full
+         * @throws StalledServerException if a read times out in the middle of a message, or at the
+         *                                start of one after a query timed out on the connection
+         */
+        private boolean read(InputStream in, byte[] buffer, boolean messageStart) throws IOException {
+            int length = 0;
+            long idleSince = System.nanoTime();
+            while (length < buffer.length) {
+                try {
+                    int read = in.read(buffer, length, buffer.length - length);
+                    if (read < 0) throw new EOFException("Connection closed by server");
+                    length += read;
+                } catch (SocketTimeoutException e) {
+                    if (!messageStart || length > 0)
+                        throw new StalledServerException("Server stalled in the middle of a response");
+                    if (timedOut)
+                        throw new StalledServerException("Server stopped responding");
+                    if (!pendingQueries.isEmpty())
+                        idleSince = System.nanoTime();
+                    else if (System.nanoTime() - idleSince >= IDLE_TIMEOUT_NANOS)
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * completes the query with the same transaction id as the response, responses that match no
+         * outstanding query (e.g., late responses to queries that already timed out) are discarded
+         */
+        private void receive(byte[] responseBytes) {
+            if (responseBytes.length < 2) return;
+            int id = (responseBytes[0] & 0xFF) << 8 | (responseBytes[1] & 0xFF);
+            timedOut = false;
+            PendingQuery query = pendingQueries.get(id);
+            if (query == null || !pendingQueries.remove(id, query)) return;
+
+            responseBytes[0] = query.message[0];
+            responseBytes[1] = query.message[1];
+            executor.execute(() -> {
+                try {
+                    query.future.complete(new Response(responseBytes));
+                } catch (RuntimeException e) {
+                    // malformed response
+                    query.future.completeExceptionally(e);
+                }
+            });
+        }
+
+        /**
+         * writes a query on the connection, under a transaction id no other outstanding query on
+         * the connection is using
+         */
+        private void send(PendingQuery query) {
+            if (pendingQueries.size() >= MAX_PENDING_QUERIES) {
+                query.future.completeExceptionally(new IOException("Too many outstanding queries"));
+                return;
+            }
+            int id;
+            do {
+                id = ThreadLocalRandom.current().nextInt(0x10000);
+            } while (pendingQueries.putIfAbsent(id, query) != null);
+            int queryId = id;
+            query.future.whenComplete((response, ex) -> {
+                if (pendingQueries.remove(queryId, query) && ex instanceof TimeoutException)
+                    timedOut = true;
+            });
+
+            // the connection may have been closed before the query was added to it
+            if (!open) {
+                if (pendingQueries.remove(queryId, query))
+                    retry(query, new IOException("Connection closed"));
+                return;
+            }
+
+            try {
+                synchronized (this) {
+                    out.writeShort(query.message.length);
+                    out.writeShort(queryId);
+                    out.write(query.message, 2, query.message.length - 2);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e, true);
+            }
+        }
+
+        /**
+         * closes the connection, queries still outstanding on it are sent again on a new connection
+         * if it is their first attempt and retryPending is set, and fail otherwise
+         * @param cause why the connection is closed, or null if it was idle
+         * @param retryPending false if the server is considered dead, so that its queries fail at once
+         */
+        private void close(IOException cause, boolean retryPending) {
+            open = false;
+            connections.remove(server, this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do with the connection
+            }
+            IOException failure = cause != null ? cause : new IOException("Connection closed");
+            connected.completeExceptionally(failure);
+            for (Integer id : pendingQueries.keySet()) {
+                PendingQuery query = pendingQueries.remove(id);
+                if (query != null && retryPending)
+                    retry(query, failure);
+                else if (query != null)
+                    query.future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * sends a query again on a new connection, unless it was already sent twice
+     */
+    private void retry(PendingQuery query, IOException cause) {
+        if (query.retried || closed) {
+            query.future.completeExceptionally(cause);
+        } else {
+            query.retried = true;
+            send(query);
+        }
+    }
+
+    /** Thrown by the reader of a connection whose server stopped sending in the middle of a
+     * response, or stopped responding altogether.
+     */
+    private static class StalledServerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private StalledServerException(String message) {
+            super(message);
+        }
+    }
+
+    private static class PendingQuery {
+        private final byte[] message;
+        private final InetAddress server;
+        private final int timeoutMillis;
+        private final CompletableFuture<Response> future = new CompletableFuture<>();
+        private volatile boolean retried = false;
+
+        private PendingQuery(byte[] message, InetAddress server, int timeoutMillis) {
+            this.message = message;
+            this.server = server;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+}
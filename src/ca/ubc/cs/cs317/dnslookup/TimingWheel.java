@@ -0,0 +1,222 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/** This class runs an action for items once their deadline (in System.nanoTime() units) has
+ * passed. Items are kept in a hierarchical timing wheel: four levels of 64 slots each, where
+ * every slot of a level spans a whole rotation of the level below. Scheduling an item and
+ * firing it are both constant time, no matter how many items are scheduled, and an item is
+ * fired at most one tick after its deadline.
+ *
+ * An item is held by at most one entry of the wheel: scheduling an item that is already
+ * scheduled moves its entry to the new deadline, and a cancelled item is unlinked from the wheel,
+ * so the wheel never holds more entries than there are items scheduled.
+ *
+ * Items may be scheduled and cancelled from any thread. Their entries are only linked into the
+ * slots of the wheel, moved, unlinked and fired by the thread calling advance.
+ */
+public class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Consumer<T> action;
+    // the entry of every item scheduled
+    private final Map<T, Entry<T>> entries = new ConcurrentHashMap<>();
+    // entries scheduled, moved or cancelled since the last advance
+    private final Queue<Entry<T>> changedEntries = new ConcurrentLinkedQueue<>();
+    // each slot is a circular list of entries, linked through the sentinel entry at its index
+    private final List<Entry<T>> slots = new ArrayList<>(LEVELS * SLOTS);
+
+    private long currentTick = 0;
+
+    /**
+     * CONSTRUCTOR: TimingWheel Object
+     * @param tickNanos length of a tick, i.e., the precision with which items are fired
+     * @param action action run for each item once its deadline has passed
+     */
+    public TimingWheel(long tickNanos, Consumer<T> action) {
+        this.tickNanos = tickNanos;
+        this.startNanos = System.nanoTime();
+        this.action = action;
+        for (int i = 0; i < LEVELS * SLOTS; i++)
+            slots.add(new Entry<>(null));
+    }
+
+    /**
+     * schedules an item to be fired once its deadline has passed, replacing its previous deadline
+     * if it is already scheduled
+     * @param item the item to be fired
+     * @param deadlineNanos time, in System.nanoTime() units, after which the item is fired
+     */
+    public void schedule(T item, long deadlineNanos) {
+        entries.compute(item, (key, entry) -> {
+            if (entry == null)
+                entry = new Entry<>(key);
+            entry.deadlineNanos = deadlineNanos;
+            if (!entry.queued) {
+                entry.queued = true;
+                changedEntries.add(entry);
+            }
+            return entry;
+        });
+    }
+
+    /**
+     * cancels an item, which is not fired unless it is scheduled again
+     * @param item the item to be cancelled, nothing happens if it is not scheduled
+     */
+    public void cancel(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry != null) {
+            entry.cancelled = true;
+            changedEntries.add(entry);
+        }
+    }
+
+    /** @return Number of items scheduled. */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * advances the wheel up to the current time, firing every item whose deadline has passed
+     * @param nowNanos the current time, in System.nanoTime() units
+     */
+    public void advance(long nowNanos) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+
+        Entry<T> entry;
+        while ((entry = changedEntries.poll()) != null) {
+            entry.queued = false;
+            unlink(entry);
+            if (!entry.cancelled)
+                place(entry);
+        }
+
+        while (currentTick < targetTick) {
+            currentTick++;
+            List<Entry<T>> dueEntries = takeSlot(0, currentTick);
+
+            // when a level completes a rotation, the next slot of the level above is spread over the
+            // levels below it
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) break;
+                for (Entry<T> cascaded : takeSlot(level, currentTick)) {
+                    if (getTick(cascaded) <= currentTick)
+                        dueEntries.add(cascaded);
+                    else
+                        place(cascaded);
+                }
+            }
+
+            for (Entry<T> due : dueEntries) {
+                // entries beyond the reach of the wheel were parked in its last slot, and are placed again
+                if (getTick(due) > currentTick)
+                    place(due);
+                else
+                    fire(due);
+            }
+        }
+    }
+
+    /**
+     * fires the item of an entry that came due, unless it was cancelled or moved to a later deadline
+     * in the meantime, in which case the entry is placed again when it is next polled
+     */
+    private void fire(Entry<T> entry) {
+        long tick = currentTick;
+        boolean[] due = {false};
+        entries.computeIfPresent(entry.item, (item, current) -> {
+            if (current != entry || getTick(current) > tick)
+                return current;
+            due[0] = true;
+            // the entry is done with, even if it is still waiting to be placed after a move
+            entry.cancelled = true;
+            return null;
+        });
+        if (due[0])
+            action.accept(entry.item);
+        else if (!entry.cancelled && !entry.queued)
+            place(entry);
+    }
+
+    private void place(Entry<T> entry) {
+        unlink(entry);
+        long tick = Math.max(getTick(entry), currentTick + 1);
+        long delta = Math.min(tick - currentTick, MAX_TICKS);
+        tick = currentTick + delta;
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+        Entry<T> sentinel = slots.get(level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK));
+        entry.prev = sentinel.prev;
+        entry.next = sentinel;
+        sentinel.prev.next = entry;
+        sentinel.prev = entry;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.next == null) return;
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    /**
+     * unlinks every entry of a slot
+     * @return the entries that were in the slot
+     */
+    private List<Entry<T>> takeSlot(int level, long tick) {
+        Entry<T> sentinel = slots.get(level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK));
+        List<Entry<T>> taken = new ArrayList<>();
+        while (sentinel.next != sentinel) {
+            Entry<T> entry = sentinel.next;
+            unlink(entry);
+            taken.add(entry);
+        }
+        return taken;
+    }
+
+    /**
+     * @return the first tick at or after the deadline of the entry
+     */
+    private long getTick(Entry<T> entry) {
+        long delta = entry.deadlineNanos - startNanos;
+        return delta <= 0 ? 0 : (delta + tickNanos - 1) / tickNanos;
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private volatile long deadlineNanos;
+        // true while the entry waits in changedEntries to be placed
+        private volatile boolean queued;
+        // true once the entry is cancelled or fired, after which it is never placed again
+        private volatile boolean cancelled;
+        // links of the slot the entry is in, only used by the thread advancing the wheel
+        private Entry<T> prev;
+        private Entry<T> next;
+
+        private Entry(T item) {
+            this.item = item;
+            // a sentinel is an empty circular list
+            if (item == null) {
+                prev = this;
+                next = this;
+            }
+        }
+    }
+}